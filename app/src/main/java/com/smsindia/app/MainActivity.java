@@ -14,9 +14,13 @@ import androidx.core.content.ContextCompat;
 import androidx.fragment.app.Fragment;
 
 import com.google.android.material.bottomnavigation.BottomNavigationView;
+import com.google.firebase.messaging.FirebaseMessaging;
+import com.smsindia.app.data.MetricsRegistry;
+import com.smsindia.app.service.DeviceRegistry;
 import com.smsindia.app.ui.ProfileFragment;
 import com.smsindia.app.ui.TaskFragment;
 import com.smsindia.app.ui.HomeFragment;
+import com.smsindia.app.workers.HeartbeatWorker;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -55,6 +59,12 @@ public class MainActivity extends AppCompatActivity {
             return;
         }
 
+        // Refreshes the push token and capacity, and covers a token issued before login
+        FirebaseMessaging.getInstance().getToken()
+                .addOnSuccessListener(token -> DeviceRegistry.register(this, token));
+        HeartbeatWorker.schedule(this);
+        MetricsRegistry.get().startSnapshots(this);
+
         loadFragment(new HomeFragment());
 
         navView.setOnItemSelectedListener(item -> {
@@ -0,0 +1,157 @@
+package com.smsindia.app.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Local ledger that batches per-SMS credits into one balance increment.
+ *
+ * Credits are counted in integer paise and persisted to prefs before anything is
+ * sent, so they survive process death. A flush moves the pending credits into a
+ * named batch and applies it in a transaction that also writes
+ * users/{uid}/ledger/{batchId}; a retried batch finds that document and is skipped,
+ * so a flush never double-credits. Task ids are remembered per batch and in a
+ * bounded recent set, so a repeated callback for the same task is ignored.
+ */
+public class BalanceLedger {
+
+    public static final int PAISE_PER_SMS = 16;
+
+    private static final String TAG = "BalanceLedger";
+    private static final int FLUSH_COUNT = 25;
+    private static final long FLUSH_AGE_MS = 60 * 1000;
+    private static final int RECENT_IDS = 500;
+
+    private static final Map<String, BalanceLedger> ledgers = new HashMap<>();
+
+    private final String uid;
+    private final SharedPreferences prefs;
+    private boolean flushing;
+
+    private BalanceLedger(Context context, String uid) {
+        this.uid = uid;
+        this.prefs = context.getApplicationContext()
+                .getSharedPreferences("SMSINDIA_LEDGER_" + uid, Context.MODE_PRIVATE);
+    }
+
+    public static synchronized BalanceLedger get(Context context, String uid) {
+        BalanceLedger ledger = ledgers.get(uid);
+        if (ledger == null) {
+            ledger = new BalanceLedger(context, uid);
+            ledgers.put(uid, ledger);
+        }
+        return ledger;
+    }
+
+    /** Records a credit for a task. Returns false if the task was already credited. */
+    public synchronized boolean credit(String taskId, int paise) {
+        Set<String> pendingIds = prefs.getStringSet("pending_ids", new HashSet<>());
+        if (pendingIds.contains(taskId)
+                || prefs.getStringSet("batch_ids", new HashSet<>()).contains(taskId)
+                || recentIds().contains(taskId)) {
+            Log.w(TAG, "Duplicate credit ignored for " + taskId);
+            return false;
+        }
+        Set<String> ids = new HashSet<>(pendingIds);
+        ids.add(taskId);
+        long firstAt = ids.size() == 1 ? System.currentTimeMillis() : prefs.getLong("pending_since", 0);
+        prefs.edit()
+                .putLong("pending_paise", prefs.getLong("pending_paise", 0) + paise)
+                .putStringSet("pending_ids", ids)
+                .putLong("pending_since", firstAt)
+                .commit();
+
+        if (ids.size() >= FLUSH_COUNT || System.currentTimeMillis() - firstAt >= FLUSH_AGE_MS) {
+            flush();
+        }
+        return true;
+    }
+
+    public synchronized long getPendingPaise() {
+        return prefs.getLong("pending_paise", 0) + prefs.getLong("batch_paise", 0);
+    }
+
+    /** Applies the pending credits (or retries an unfinished batch) as a single increment. */
+    public synchronized void flush() {
+        if (flushing) return;
+
+        String batchId = prefs.getString("batch_id", null);
+        if (batchId == null) {
+            long paise = prefs.getLong("pending_paise", 0);
+            if (paise == 0) return;
+            batchId = UUID.randomUUID().toString();
+            prefs.edit()
+                    .putString("batch_id", batchId)
+                    .putLong("batch_paise", paise)
+                    .putStringSet("batch_ids", prefs.getStringSet("pending_ids", new HashSet<>()))
+                    .remove("pending_paise")
+                    .remove("pending_ids")
+                    .remove("pending_since")
+                    .commit();
+        }
+
+        final String id = batchId;
+        final long paise = prefs.getLong("batch_paise", 0);
+        final int count = prefs.getStringSet("batch_ids", new HashSet<>()).size();
+        FirebaseFirestore db = FirebaseFirestore.getInstance();
+        DocumentReference user = db.collection("users").document(uid);
+        DocumentReference marker = user.collection("ledger").document(id);
+
+        flushing = true;
+        db.runTransaction(tx -> {
+            if (tx.get(marker).exists()) return null; // already applied by an earlier attempt
+            tx.update(user, "balance", FieldValue.increment(paise / 100.0));
+            Map<String, Object> entry = new HashMap<>();
+            entry.put("paise", paise);
+            entry.put("count", count);
+            entry.put("timestamp", System.currentTimeMillis());
+            tx.set(marker, entry);
+            return null;
+        }).addOnCompleteListener(task -> {
+            synchronized (BalanceLedger.this) {
+                flushing = false;
+                if (task.isSuccessful()) {
+                    completeBatch(id);
+                    Log.d(TAG, "Flushed " + count + " credits, " + paise + " paise");
+                } else {
+                    Log.w(TAG, "Ledger flush failed, will retry", task.getException());
+                }
+            }
+        });
+    }
+
+    private void completeBatch(String batchId) {
+        if (!batchId.equals(prefs.getString("batch_id", null))) return;
+        List<String> recent = recentIds();
+        recent.addAll(prefs.getStringSet("batch_ids", new HashSet<>()));
+        if (recent.size() > RECENT_IDS) recent = recent.subList(recent.size() - RECENT_IDS, recent.size());
+        prefs.edit()
+                .remove("batch_id")
+                .remove("batch_paise")
+                .remove("batch_ids")
+                .putString("recent_ids", String.join(",", recent))
+                .commit();
+    }
+
+    /** Recently credited task ids, oldest first. Stored as one string to keep the order. */
+    private List<String> recentIds() {
+        String joined = prefs.getString("recent_ids", "");
+        List<String> ids = new ArrayList<>();
+        if (!joined.isEmpty()) ids.addAll(Arrays.asList(joined.split(",")));
+        return ids;
+    }
+}
@@ -0,0 +1,265 @@
+package com.smsindia.app.data;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Hands out one correlation id per send and remembers which task it belongs to.
+ *
+ * The id doubles as the sent PendingIntent's request code, so two sends in flight
+ * can never share a PendingIntent and overwrite each other's extras. Ids increase
+ * monotonically across process restarts: they are reserved from SMSINDIA_CORRELATION
+ * in blocks, so only one send in ID_BLOCK writes the counter. Entries are kept in an
+ * int-keyed open-addressing map and mirrored to OutboxDb, so a callback that lands
+ * after a restart still resolves.
+ *
+ * Each entry also carries the per-part sent and delivery states; PartAggregator
+ * updates them and closes the entry once the message is final.
+ */
+public class CorrelationRegistry {
+
+    private static final String TAG = "CorrelationRegistry";
+    private static final String PREFS = "SMSINDIA_CORRELATION";
+    private static final String KEY_RESERVED = "reserved";
+    private static final int ID_BLOCK = 256;
+    /** Stored entries older than this lost their callback for good. */
+    private static final long MAX_AGE_MS = 24 * 60 * 60 * 1000L;
+    public static final char PART_PENDING = '.';
+
+    private static CorrelationRegistry instance;
+
+    private final SharedPreferences prefs;
+    private final OutboxDb db;
+    private final Executor io = Executors.newSingleThreadExecutor();
+    private final IntMap open = new IntMap(64);
+    private int nextId;
+    private int reservedUpTo;
+
+    /**
+     * One send: its task and recipient, when it went out, and what each part's sent and
+     * delivery callbacks said so far. Part states are one char per part, PART_PENDING
+     * until resolved; PartAggregator owns their meaning. Mutate only while holding the entry.
+     */
+    public static class Entry {
+        public static final int SENT_FINAL = 1;
+        public static final int DELIVERY_FINAL = 2;
+
+        public final int id;
+        public final String docId;
+        public final String userId;
+        public final String phone;
+        public final int subId;
+        public final int partCount;
+        public final long sentAt;
+        public final char[] sentParts;
+        public final char[] deliveredParts;
+        /** First non-OK sent result code, or RESULT_OK (-1). */
+        public int sentCode;
+        public int flags;
+        /** When the sent outcome became final in this process; 0 if unknown. Not persisted. */
+        public long sentDoneAt;
+
+        public Entry(int id, String docId, String userId, String phone, int subId,
+                     int partCount, long sentAt) {
+            this.id = id;
+            this.docId = docId;
+            this.userId = userId;
+            this.phone = phone;
+            this.subId = subId;
+            this.partCount = Math.max(1, partCount);
+            this.sentAt = sentAt;
+            this.sentParts = new char[this.partCount];
+            this.deliveredParts = new char[this.partCount];
+            Arrays.fill(sentParts, PART_PENDING);
+            Arrays.fill(deliveredParts, PART_PENDING);
+            this.sentCode = Activity.RESULT_OK;
+        }
+
+        public boolean is(int flag) {
+            return (flags & flag) != 0;
+        }
+    }
+
+    private CorrelationRegistry(Context context) {
+        this.prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        this.db = OutboxDb.get(context);
+        // Ids reserved by the previous process may have been handed out; never reuse them
+        this.nextId = Math.max(1, prefs.getInt(KEY_RESERVED, 1));
+        this.reservedUpTo = nextId;
+        io.execute(() -> {
+            int purged = db.purgeCorrelations(System.currentTimeMillis() - MAX_AGE_MS);
+            if (purged > 0) Log.d(TAG, "Purged " + purged + " stale correlations");
+        });
+    }
+
+    public static synchronized CorrelationRegistry get(Context context) {
+        if (instance == null) instance = new CorrelationRegistry(context.getApplicationContext());
+        return instance;
+    }
+
+    /**
+     * Registers a send and returns its id, for use as the PendingIntent request code.
+     * The entry is on disk before this returns, so a callback that arrives after a
+     * process death still finds it. That costs one row insert on the calling thread.
+     */
+    public int open(String docId, String userId, String phone, int subId, int partCount, long sentAt) {
+        Entry e;
+        synchronized (this) {
+            if (nextId >= reservedUpTo) reserve();
+            int id = nextId++;
+            e = new Entry(id, docId, userId, phone, subId, partCount, sentAt);
+            open.put(id, e);
+        }
+        persist(e).run();
+        return e.id;
+    }
+
+    /**
+     * The send behind a callback, falling back to the stored copy after a restart.
+     * Returns null for an unknown id. May hit the disk; call off the main thread.
+     */
+    public Entry find(int id) {
+        Entry e;
+        synchronized (this) {
+            e = open.get(id);
+        }
+        if (e != null) return e;
+        e = db.getCorrelation(id);
+        if (e == null) return null;
+        synchronized (this) {
+            Entry raced = open.get(id);
+            if (raced != null) return raced;
+            open.put(id, e);
+        }
+        return e;
+    }
+
+    /** Persists the entry's current part states. */
+    public void save(Entry e) {
+        io.execute(persist(e));
+    }
+
+    /** Snapshots the entry now; the returned write may run on any thread. */
+    private Runnable persist(Entry e) {
+        String sentParts;
+        String deliveredParts;
+        int sentCode;
+        int flags;
+        synchronized (e) {
+            sentParts = new String(e.sentParts);
+            deliveredParts = new String(e.deliveredParts);
+            sentCode = e.sentCode;
+            flags = e.flags;
+        }
+        return () -> db.putCorrelation(e, sentParts, deliveredParts, sentCode, flags);
+    }
+
+    /** Ids of stored sends that went out before the given time and lack a flag, oldest first. */
+    public List<Integer> openBefore(long sentBefore, int missingFlag, int limit) {
+        return db.correlationsBefore(sentBefore, missingFlag, limit);
+    }
+
+    /** Forgets a finished send, or one that never reached the radio. */
+    public void close(int id) {
+        synchronized (this) {
+            open.remove(id);
+        }
+        io.execute(() -> db.removeCorrelation(id));
+    }
+
+    public synchronized int openCount() {
+        return open.size();
+    }
+
+    private void reserve() {
+        int next = nextId > Integer.MAX_VALUE - ID_BLOCK ? 1 : nextId;
+        nextId = next;
+        reservedUpTo = next + ID_BLOCK;
+        // commit, not apply: the block must be on disk before any of its ids leave the process
+        prefs.edit().putInt(KEY_RESERVED, reservedUpTo).commit();
+    }
+
+    /**
+     * int to Entry map with linear probing and backward-shift deletion, so lookups on
+     * the callback path box nothing. Key 0 marks an empty slot; ids start at 1.
+     */
+    static final class IntMap {
+        private int[] keys;
+        private Entry[] values;
+        private int size;
+
+        IntMap(int capacity) {
+            int cap = Integer.highestOneBit(Math.max(4, capacity - 1)) << 1;
+            keys = new int[cap];
+            values = new Entry[cap];
+        }
+
+        Entry get(int key) {
+            int mask = keys.length - 1;
+            for (int i = mix(key) & mask; keys[i] != 0; i = (i + 1) & mask) {
+                if (keys[i] == key) return values[i];
+            }
+            return null;
+        }
+
+        void put(int key, Entry value) {
+            if ((size + 1) * 4 > keys.length * 3) grow();
+            int mask = keys.length - 1;
+            int i = mix(key) & mask;
+            while (keys[i] != 0 && keys[i] != key) i = (i + 1) & mask;
+            if (keys[i] == 0) size++;
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        void remove(int key) {
+            int mask = keys.length - 1;
+            int i = mix(key) & mask;
+            while (keys[i] != key) {
+                if (keys[i] == 0) return;
+                i = (i + 1) & mask;
+            }
+            // Shift later members of the probe run back so lookups never stop early
+            int gap = i;
+            for (int j = (gap + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+                int home = mix(keys[j]) & mask;
+                if (((j - home) & mask) >= ((j - gap) & mask)) {
+                    keys[gap] = keys[j];
+                    values[gap] = values[j];
+                    gap = j;
+                }
+            }
+            keys[gap] = 0;
+            values[gap] = null;
+            size--;
+        }
+
+        int size() {
+            return size;
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            Entry[] oldValues = values;
+            keys = new int[oldKeys.length * 2];
+            values = new Entry[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) put(oldKeys[i], oldValues[i]);
+            }
+        }
+
+        /** Sequential ids would otherwise fill one contiguous run. */
+        private static int mix(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
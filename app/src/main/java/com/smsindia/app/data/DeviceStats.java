@@ -0,0 +1,66 @@
+package com.smsindia.app.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Durable send-result counters for heartbeat reporting.
+ *
+ * OutboxDrainWorker records results once their batch is committed, so the counts
+ * follow the outbox rather than the in-memory lanes and survive process death.
+ * interval() returns what happened since the previous call and moves the mark.
+ */
+public class DeviceStats {
+
+    private final SharedPreferences prefs;
+
+    public static final class Interval {
+        public final long ok;
+        public final long failed;
+        public final long elapsedMs;
+
+        Interval(long ok, long failed, long elapsedMs) {
+            this.ok = ok;
+            this.failed = failed;
+            this.elapsedMs = elapsedMs;
+        }
+
+        public float ratePerMin() {
+            return elapsedMs > 0 ? (ok + failed) * 60000f / elapsedMs : 0f;
+        }
+
+        /** Share of successful sends, or -1 when nothing was sent. */
+        public float successRatio() {
+            long total = ok + failed;
+            return total > 0 ? (float) ok / total : -1f;
+        }
+    }
+
+    public DeviceStats(Context context) {
+        this.prefs = context.getSharedPreferences("SMSINDIA_STATS", Context.MODE_PRIVATE);
+    }
+
+    public synchronized void record(int ok, int failed) {
+        if (ok == 0 && failed == 0) return;
+        prefs.edit()
+                .putLong("ok", prefs.getLong("ok", 0) + ok)
+                .putLong("failed", prefs.getLong("failed", 0) + failed)
+                .apply();
+    }
+
+    public synchronized Interval interval(long now) {
+        long ok = prefs.getLong("ok", 0);
+        long failed = prefs.getLong("failed", 0);
+        long markAt = prefs.getLong("mark_at", 0);
+        Interval i = new Interval(
+                ok - prefs.getLong("mark_ok", 0),
+                failed - prefs.getLong("mark_failed", 0),
+                markAt > 0 ? now - markAt : 0);
+        prefs.edit()
+                .putLong("mark_ok", ok)
+                .putLong("mark_failed", failed)
+                .putLong("mark_at", now)
+                .apply();
+        return i;
+    }
+}
@@ -0,0 +1,192 @@
+package com.smsindia.app.data;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process counters and latency histograms for the send pipeline.
+ *
+ * Recording is lock-free: counters are LongAdders, histograms bump one slot of an
+ * AtomicLongArray over fixed millisecond buckets, so hot paths can record freely.
+ * Callers keep the Counter or Histogram in a static field rather than looking it up
+ * by name each time. Values live for the process only; startSnapshots() appends a
+ * compact JSON line to metrics.log in filesDir every minute, so runs can be compared
+ * across devices and releases. MetricsActivity shows the live values.
+ */
+public class MetricsRegistry {
+
+    private static final String TAG = "MetricsRegistry";
+    private static final String FILE_NAME = "metrics.log";
+    private static final long SNAPSHOT_PERIOD_S = 60;
+    private static final long MAX_FILE_BYTES = 256 * 1024;
+    /** Bucket upper bounds in ms; the last bucket takes everything above. */
+    private static final long[] BOUNDS_MS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000,
+            10000, 30000, 60000, 300000, 1800000, 3600000, 21600000};
+
+    private static final MetricsRegistry instance = new MetricsRegistry();
+
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private ScheduledExecutorService snapshots;
+    private long lastSnapshotTotal = -1;
+
+    public static MetricsRegistry get() {
+        return instance;
+    }
+
+    public static Counter counter(String name) {
+        return instance.counters.computeIfAbsent(name, n -> new Counter());
+    }
+
+    public static Histogram histogram(String name) {
+        return instance.histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    public static class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    public static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS_MS.length + 1);
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long ms) {
+            if (ms < 0) return;
+            int i = Arrays.binarySearch(BOUNDS_MS, ms);
+            buckets.incrementAndGet(i >= 0 ? i : -i - 1);
+            max.accumulateAndGet(ms, Math::max);
+        }
+
+        public long count() {
+            long n = 0;
+            for (int i = 0; i < buckets.length(); i++) n += buckets.get(i);
+            return n;
+        }
+
+        /**
+         * Upper bound of the bucket holding the p-th percentile, capped at the max seen;
+         * -1 when empty. Bucket resolution only, which is enough to compare runs.
+         */
+        public long percentile(double p) {
+            long[] counts = new long[buckets.length()];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) total += counts[i] = buckets.get(i);
+            if (total == 0) return -1;
+            long rank = Math.max(1, (long) Math.ceil(p * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return i < BOUNDS_MS.length ? Math.min(BOUNDS_MS[i], max.get()) : max.get();
+            }
+            return max.get();
+        }
+
+        public long max() {
+            return max.get();
+        }
+    }
+
+    /** Human-readable table for the debug screen, names sorted. */
+    public String describe() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Counters\n");
+        for (Map.Entry<String, Counter> e : new TreeMap<>(counters).entrySet()) {
+            sb.append(String.format(Locale.US, "  %-26s %8d\n", e.getKey(), e.getValue().get()));
+        }
+        sb.append("\nLatency (ms)            count    p50    p90    p99    max\n");
+        for (Map.Entry<String, Histogram> e : new TreeMap<>(histograms).entrySet()) {
+            Histogram h = e.getValue();
+            sb.append(String.format(Locale.US, "  %-20s %7d %6d %6d %6d %6d\n", e.getKey(), h.count(),
+                    h.percentile(0.50), h.percentile(0.90), h.percentile(0.99), h.max()));
+        }
+        return sb.toString();
+    }
+
+    /** One compact line: {"t":..,"c":{name:n},"h":{name:[count,p50,p90,p99,max]}}. */
+    public String snapshotLine(long now) throws JSONException {
+        JSONObject c = new JSONObject();
+        for (Map.Entry<String, Counter> e : counters.entrySet()) c.put(e.getKey(), e.getValue().get());
+        JSONObject h = new JSONObject();
+        for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+            Histogram hist = e.getValue();
+            h.put(e.getKey(), new JSONArray()
+                    .put(hist.count())
+                    .put(hist.percentile(0.50))
+                    .put(hist.percentile(0.90))
+                    .put(hist.percentile(0.99))
+                    .put(hist.max()));
+        }
+        return new JSONObject().put("t", now).put("c", c).put("h", h).toString();
+    }
+
+    /** Starts the periodic snapshot to filesDir/metrics.log; later calls do nothing. */
+    public synchronized void startSnapshots(Context context) {
+        if (snapshots != null) return;
+        File file = new File(context.getApplicationContext().getFilesDir(), FILE_NAME);
+        snapshots = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        snapshots.scheduleWithFixedDelay(() -> writeSnapshot(file),
+                SNAPSHOT_PERIOD_S, SNAPSHOT_PERIOD_S, TimeUnit.SECONDS);
+    }
+
+    public static File snapshotFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    private void writeSnapshot(File file) {
+        // Skip idle minutes; an unchanged line says nothing new
+        long total = 0;
+        for (Counter c : counters.values()) total += c.get();
+        for (Histogram h : histograms.values()) total += h.count();
+        if (total == lastSnapshotTotal) return;
+        lastSnapshotTotal = total;
+
+        try {
+            if (file.length() > MAX_FILE_BYTES) {
+                File old = new File(file.getPath() + ".1");
+                if (!file.renameTo(old)) Log.w(TAG, "Could not rotate " + file);
+            }
+            try (FileWriter out = new FileWriter(file, true)) {
+                out.write(snapshotLine(System.currentTimeMillis()));
+                out.write('\n');
+            }
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Snapshot failed", e);
+        }
+    }
+}
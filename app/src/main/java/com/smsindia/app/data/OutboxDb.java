@@ -0,0 +1,284 @@
+package com.smsindia.app.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Append-only local outbox for SMS results.
+ *
+ * SmsDeliveryReceiver appends one row per finished send; OutboxDrainWorker applies
+ * rows to Firestore and deletes them only once the writes are acknowledged. Each
+ * row carries a stable log id so a row that is drained twice rewrites the same
+ * sent_logs document instead of adding a second one.
+ *
+ * The retry table holds tasks whose send failed for a retryable reason. They stay in
+ * sms_tasks and SmsWorker sends them again once next_at has passed.
+ *
+ * The correlation table backs CorrelationRegistry, so a sent callback that arrives
+ * after a process restart still finds the send it belongs to.
+ */
+public class OutboxDb extends SQLiteOpenHelper {
+
+    private static final String DB_NAME = "outbox.db";
+    private static final int DB_VERSION = 4;
+    private static final String TABLE = "outbox";
+    private static final String RETRY_TABLE = "retry";
+    private static final String CORRELATION_TABLE = "correlation";
+
+    private static OutboxDb instance;
+
+    public static class Entry {
+        public long id;
+        public String logId;
+        public String userId;
+        public String docId;
+        public String phone;
+        public String status;
+        public int resultCode;
+        public int subId;
+        public long timestamp;
+        /** Send to delivery report, for delivery rows; 0 otherwise. */
+        public long latencyMs;
+    }
+
+    private OutboxDb(Context context) {
+        super(context.getApplicationContext(), DB_NAME, null, DB_VERSION);
+    }
+
+    public static synchronized OutboxDb get(Context context) {
+        if (instance == null) instance = new OutboxDb(context);
+        return instance;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + "id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "log_id TEXT NOT NULL, "
+                + "user_id TEXT, "
+                + "doc_id TEXT, "
+                + "phone TEXT, "
+                + "status TEXT NOT NULL, "
+                + "result_code INTEGER NOT NULL, "
+                + "sub_id INTEGER NOT NULL, "
+                + "created_at INTEGER NOT NULL, "
+                + "latency_ms INTEGER NOT NULL DEFAULT 0)");
+        createRetryTable(db);
+        createCorrelationTable(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) createRetryTable(db);
+        if (oldVersion < 3) createCorrelationTable(db);
+        if (oldVersion < 4) {
+            db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN latency_ms INTEGER NOT NULL DEFAULT 0");
+            if (oldVersion >= 3) {
+                // Correlations live for minutes; dropping the few in flight beats migrating them
+                db.execSQL("DROP TABLE " + CORRELATION_TABLE);
+                createCorrelationTable(db);
+            }
+        }
+    }
+
+    private static void createRetryTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + RETRY_TABLE + " ("
+                + "doc_id TEXT PRIMARY KEY, "
+                + "attempts INTEGER NOT NULL, "
+                + "next_at INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX retry_next_at ON " + RETRY_TABLE + " (next_at)");
+    }
+
+    private static void createCorrelationTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + CORRELATION_TABLE + " ("
+                + "id INTEGER PRIMARY KEY, "
+                + "doc_id TEXT, "
+                + "user_id TEXT, "
+                + "phone TEXT, "
+                + "sub_id INTEGER NOT NULL, "
+                + "part_count INTEGER NOT NULL, "
+                + "sent_at INTEGER NOT NULL, "
+                + "sent_parts TEXT NOT NULL, "
+                + "delivered_parts TEXT NOT NULL, "
+                + "sent_code INTEGER NOT NULL, "
+                + "flags INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX correlation_sent_at ON " + CORRELATION_TABLE + " (sent_at)");
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        db.enableWriteAheadLogging();
+    }
+
+    /** Must be called off the main thread. */
+    public void append(String userId, String docId, String phone, String status,
+                       int resultCode, int subId) {
+        ContentValues v = new ContentValues();
+        v.put("log_id", UUID.randomUUID().toString());
+        v.put("user_id", userId);
+        v.put("doc_id", docId);
+        v.put("phone", phone);
+        v.put("status", status);
+        v.put("result_code", resultCode);
+        v.put("sub_id", subId);
+        v.put("created_at", System.currentTimeMillis());
+        getWritableDatabase().insertOrThrow(TABLE, null, v);
+    }
+
+    /**
+     * Records a message's delivery outcome ("delivered", "undelivered" or
+     * "delivery_timeout"). The drain only logs these; crediting stays with "sent".
+     */
+    public void appendDelivery(String userId, String docId, String phone, String status,
+                               long latencyMs, int subId) {
+        ContentValues v = new ContentValues();
+        v.put("log_id", UUID.randomUUID().toString());
+        v.put("user_id", userId);
+        v.put("doc_id", docId);
+        v.put("phone", phone);
+        v.put("status", status);
+        v.put("result_code", 0);
+        v.put("sub_id", subId);
+        v.put("created_at", System.currentTimeMillis());
+        v.put("latency_ms", latencyMs);
+        getWritableDatabase().insertOrThrow(TABLE, null, v);
+    }
+
+    /** Oldest rows first. */
+    public List<Entry> peek(int limit) {
+        List<Entry> entries = new ArrayList<>();
+        try (Cursor c = getReadableDatabase().query(TABLE, null, null, null, null, null,
+                "id ASC", String.valueOf(limit))) {
+            while (c.moveToNext()) {
+                Entry e = new Entry();
+                e.id = c.getLong(c.getColumnIndexOrThrow("id"));
+                e.logId = c.getString(c.getColumnIndexOrThrow("log_id"));
+                e.userId = c.getString(c.getColumnIndexOrThrow("user_id"));
+                e.docId = c.getString(c.getColumnIndexOrThrow("doc_id"));
+                e.phone = c.getString(c.getColumnIndexOrThrow("phone"));
+                e.status = c.getString(c.getColumnIndexOrThrow("status"));
+                e.resultCode = c.getInt(c.getColumnIndexOrThrow("result_code"));
+                e.subId = c.getInt(c.getColumnIndexOrThrow("sub_id"));
+                e.timestamp = c.getLong(c.getColumnIndexOrThrow("created_at"));
+                e.latencyMs = c.getLong(c.getColumnIndexOrThrow("latency_ms"));
+                entries.add(e);
+            }
+        }
+        return entries;
+    }
+
+    /** Removes every row up to and including maxId. */
+    public void deleteThrough(long maxId) {
+        getWritableDatabase().delete(TABLE, "id <= ?", new String[]{String.valueOf(maxId)});
+    }
+
+    /** Failed attempts recorded for a task so far; 0 when it is not queued for retry. */
+    public int retryAttempts(String docId) {
+        try (Cursor c = getReadableDatabase().query(RETRY_TABLE, new String[]{"attempts"},
+                "doc_id = ?", new String[]{docId}, null, null, null)) {
+            return c.moveToFirst() ? c.getInt(0) : 0;
+        }
+    }
+
+    /** Queues (or re-queues) a task to be sent again at nextAt. */
+    public void scheduleRetry(String docId, int attempts, long nextAt) {
+        ContentValues v = new ContentValues();
+        v.put("doc_id", docId);
+        v.put("attempts", attempts);
+        v.put("next_at", nextAt);
+        getWritableDatabase().insertWithOnConflict(RETRY_TABLE, null, v, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    public void removeRetry(String docId) {
+        getWritableDatabase().delete(RETRY_TABLE, "doc_id = ?", new String[]{docId});
+    }
+
+    /** Ids of retries due by now, soonest first. */
+    public List<String> dueRetries(long now, int limit) {
+        List<String> ids = new ArrayList<>();
+        try (Cursor c = getReadableDatabase().query(RETRY_TABLE, new String[]{"doc_id"},
+                "next_at <= ?", new String[]{String.valueOf(now)}, null, null,
+                "next_at ASC", String.valueOf(limit))) {
+            while (c.moveToNext()) ids.add(c.getString(0));
+        }
+        return ids;
+    }
+
+    /** When the next queued retry is due, or 0 when the queue is empty. */
+    public long nextRetryAt() {
+        try (Cursor c = getReadableDatabase().rawQuery("SELECT MIN(next_at) FROM " + RETRY_TABLE, null)) {
+            return c.moveToFirst() && !c.isNull(0) ? c.getLong(0) : 0;
+        }
+    }
+
+    /** Stores a correlation with the given snapshot of its mutable state. */
+    public void putCorrelation(CorrelationRegistry.Entry e, String sentParts, String deliveredParts,
+                               int sentCode, int flags) {
+        ContentValues v = new ContentValues();
+        v.put("id", e.id);
+        v.put("doc_id", e.docId);
+        v.put("user_id", e.userId);
+        v.put("phone", e.phone);
+        v.put("sub_id", e.subId);
+        v.put("part_count", e.partCount);
+        v.put("sent_at", e.sentAt);
+        v.put("sent_parts", sentParts);
+        v.put("delivered_parts", deliveredParts);
+        v.put("sent_code", sentCode);
+        v.put("flags", flags);
+        getWritableDatabase().insertWithOnConflict(CORRELATION_TABLE, null, v, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /** The stored send for a correlation id, or null. */
+    public CorrelationRegistry.Entry getCorrelation(int id) {
+        try (Cursor c = getReadableDatabase().query(CORRELATION_TABLE,
+                new String[]{"doc_id", "user_id", "phone", "sub_id", "part_count", "sent_at",
+                        "sent_parts", "delivered_parts", "sent_code", "flags"},
+                "id = ?", new String[]{String.valueOf(id)}, null, null, null)) {
+            if (!c.moveToFirst()) return null;
+            CorrelationRegistry.Entry e = new CorrelationRegistry.Entry(id, c.getString(0),
+                    c.getString(1), c.getString(2), c.getInt(3), c.getInt(4), c.getLong(5));
+            String sentParts = c.getString(6);
+            String deliveredParts = c.getString(7);
+            sentParts.getChars(0, Math.min(sentParts.length(), e.partCount), e.sentParts, 0);
+            deliveredParts.getChars(0, Math.min(deliveredParts.length(), e.partCount), e.deliveredParts, 0);
+            e.sentCode = c.getInt(8);
+            e.flags = c.getInt(9);
+            return e;
+        }
+    }
+
+    /** Ids of correlations sent before the given time without the given flag, oldest first. */
+    public List<Integer> correlationsBefore(long sentBefore, int missingFlag, int limit) {
+        List<Integer> ids = new ArrayList<>();
+        try (Cursor c = getReadableDatabase().query(CORRELATION_TABLE, new String[]{"id"},
+                "sent_at < ? AND (flags & ?) = 0",
+                new String[]{String.valueOf(sentBefore), String.valueOf(missingFlag)}, null, null,
+                "sent_at ASC", String.valueOf(limit))) {
+            while (c.moveToNext()) ids.add(c.getInt(0));
+        }
+        return ids;
+    }
+
+    public void removeCorrelation(int id) {
+        getWritableDatabase().delete(CORRELATION_TABLE, "id = ?", new String[]{String.valueOf(id)});
+    }
+
+    /** Drops correlations whose callbacks never came, e.g. sends lost to a reboot. */
+    public int purgeCorrelations(long sentBefore) {
+        return getWritableDatabase().delete(CORRELATION_TABLE, "sent_at < ?",
+                new String[]{String.valueOf(sentBefore)});
+    }
+
+    public long size() {
+        return android.database.DatabaseUtils.queryNumEntries(getReadableDatabase(), TABLE);
+    }
+}
@@ -0,0 +1,136 @@
+package com.smsindia.app.data;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * On-disk record of task ids this device has already sent, checked before every send.
+ *
+ * Two memory-mapped Bloom filters of 2^24 bits (2 MB) each, used as rolling
+ * generations: new ids go into the current one, lookups check both, and once the
+ * current generation is older than the window the older one is wiped and becomes
+ * current. With 7 hash functions each generation holds about 1.7 million ids at a
+ * 1% false positive rate. A false positive only means this device skips a task,
+ * which then goes to another device when its lease expires.
+ *
+ * Writes land in the page cache, so they survive process death without an fsync.
+ */
+public class SentIdFilter {
+
+    private static final String TAG = "SentIdFilter";
+    private static final int MAGIC = 0x53494446; // "SIDF"
+    private static final int LOG2_BITS = 24;
+    private static final int BITS = 1 << LOG2_BITS;
+    private static final int GEN_BYTES = BITS / 8;
+    private static final int HASHES = 7;
+    private static final long WINDOW_MS = 7L * 24 * 60 * 60 * 1000;
+
+    // Header: magic, current generation, start time of each generation
+    private static final int OFF_MAGIC = 0;
+    private static final int OFF_CURRENT = 4;
+    private static final int OFF_START = 8;
+    private static final int HEADER_BYTES = 64;
+
+    private static SentIdFilter instance;
+
+    private final MappedByteBuffer map;
+    private final long windowMs;
+
+    SentIdFilter(File file, long windowMs) throws IOException {
+        this.windowMs = windowMs;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long size = HEADER_BYTES + 2L * GEN_BYTES;
+            raf.setLength(size);
+            map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        if (map.getInt(OFF_MAGIC) != MAGIC) {
+            map.putInt(OFF_CURRENT, 0);
+            map.putLong(OFF_START, System.currentTimeMillis());
+            map.putLong(OFF_START + 8, 0);
+            map.putInt(OFF_MAGIC, MAGIC);
+        }
+    }
+
+    /** Returns the shared filter, or null if the backing file cannot be mapped. */
+    public static synchronized SentIdFilter get(Context context) {
+        if (instance == null) {
+            try {
+                instance = new SentIdFilter(new File(context.getFilesDir(), "sent_ids.bloom"), WINDOW_MS);
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot map sent id filter", e);
+            }
+        }
+        return instance;
+    }
+
+    public synchronized boolean mightContain(String id) {
+        return mightContainKey(hash(id));
+    }
+
+    public synchronized void add(String id) {
+        addKey(hash(id));
+    }
+
+    /** Same as mightContain but for a precomputed 64-bit key. */
+    public synchronized boolean mightContainKey(long key) {
+        return contains(0, key) || contains(1, key);
+    }
+
+    public synchronized void addKey(long key) {
+        rotateIfDue(System.currentTimeMillis());
+        int gen = map.getInt(OFF_CURRENT);
+        int h1 = (int) key;
+        int h2 = (int) (key >>> 32) | 1; // odd step visits distinct bits
+        for (int i = 0; i < HASHES; i++) {
+            int bit = (h1 + i * h2) & (BITS - 1);
+            int pos = offset(gen) + (bit >>> 3);
+            map.put(pos, (byte) (map.get(pos) | (1 << (bit & 7))));
+        }
+    }
+
+    private boolean contains(int gen, long key) {
+        int h1 = (int) key;
+        int h2 = (int) (key >>> 32) | 1; // odd step visits distinct bits
+        for (int i = 0; i < HASHES; i++) {
+            int bit = (h1 + i * h2) & (BITS - 1);
+            if ((map.get(offset(gen) + (bit >>> 3)) & (1 << (bit & 7))) == 0) return false;
+        }
+        return true;
+    }
+
+    private void rotateIfDue(long now) {
+        int current = map.getInt(OFF_CURRENT);
+        if (now - map.getLong(OFF_START + 8 * current) < windowMs) return;
+        int next = 1 - current;
+        int base = offset(next);
+        for (int i = 0; i < GEN_BYTES; i += 8) map.putLong(base + i, 0L);
+        map.putLong(OFF_START + 8 * next, now);
+        map.putInt(OFF_CURRENT, next);
+        Log.d(TAG, "Rotated to generation " + next);
+    }
+
+    private static int offset(int gen) {
+        return HEADER_BYTES + gen * GEN_BYTES;
+    }
+
+    /** FNV-1a over the UTF-16 chars followed by a murmur3 finalizer; no allocation. */
+    public static long hash(CharSequence s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,118 @@
+package com.smsindia.app.data;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.smsindia.app.sms.MessageTemplate;
+import com.smsindia.app.sms.SmsTask;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+/**
+ * Device-side cache of message templates from sms_templates/{templateId}.
+ *
+ * Lookups go memory (LRU), then disk (filesDir/templates), then Firestore. A template
+ * id is treated as immutable: a changed text should be published under a new id.
+ * Ids also name the cache files, so only [A-Za-z0-9_-] ids are accepted.
+ */
+public class TemplateCache {
+
+    private static final String TAG = "TemplateCache";
+    private static final int MEMORY_ENTRIES = 32;
+    private static final Pattern VALID_ID = Pattern.compile("[A-Za-z0-9_-]+");
+
+    private static TemplateCache instance;
+
+    private final File dir;
+    private final FirebaseFirestore db;
+    private final Executor io = Executors.newSingleThreadExecutor();
+    private final LruCache<String, MessageTemplate> memory = new LruCache<>(MEMORY_ENTRIES);
+
+    private TemplateCache(Context context) {
+        this.dir = new File(context.getFilesDir(), "templates");
+        this.db = FirebaseFirestore.getInstance();
+    }
+
+    public static synchronized TemplateCache get(Context context) {
+        if (instance == null) instance = new TemplateCache(context.getApplicationContext());
+        return instance;
+    }
+
+    /**
+     * The text to send for a task: its plain message field, or its templateId rendered
+     * with its params map. Resolves to null when neither is usable.
+     */
+    public Task<String> resolveMessage(SmsTask task) {
+        if (task.message != null) return Tasks.forResult(task.message);
+        if (task.templateId == null) return Tasks.forResult(null);
+        return load(task.templateId).continueWith(t -> t.getResult().render(task.params));
+    }
+
+    /** Resolves a template; completes immediately on a memory hit. Fails for a malformed id. */
+    public Task<MessageTemplate> load(String templateId) {
+        if (!VALID_ID.matcher(templateId).matches()) {
+            return Tasks.forException(new IllegalArgumentException("Bad template id: " + templateId));
+        }
+        MessageTemplate cached = memory.get(templateId);
+        if (cached != null) return Tasks.forResult(cached);
+
+        return Tasks.call(io, () -> readDisk(templateId)).continueWithTask(io, disk -> {
+            if (disk.getResult() != null) return Tasks.forResult(remember(templateId, disk.getResult()));
+            return db.collection("sms_templates").document(templateId).get()
+                    .continueWith(io, fetch -> {
+                        String text = fetch.getResult().getString("text");
+                        if (text == null) throw new IllegalStateException("Template " + templateId + " not found");
+                        writeDisk(templateId, text);
+                        return remember(templateId, text);
+                    });
+        });
+    }
+
+    private MessageTemplate remember(String templateId, String text) {
+        MessageTemplate t = MessageTemplate.compile(templateId, text);
+        memory.put(templateId, t);
+        return t;
+    }
+
+    private String readDisk(String templateId) {
+        File f = new File(dir, templateId + ".txt");
+        if (!f.exists()) return null;
+        try (FileInputStream in = new FileInputStream(f)) {
+            byte[] buf = new byte[(int) f.length()];
+            int off = 0;
+            while (off < buf.length) {
+                int n = in.read(buf, off, buf.length - off);
+                if (n < 0) break;
+                off += n;
+            }
+            return new String(buf, 0, off, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read cached template " + templateId, e);
+            return null;
+        }
+    }
+
+    private void writeDisk(String templateId, String text) {
+        if (!dir.exists() && !dir.mkdirs()) return;
+        File tmp = new File(dir, templateId + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot cache template " + templateId, e);
+            return;
+        }
+        // Rename so a half-written file is never read back as a template
+        if (!tmp.renameTo(new File(dir, templateId + ".txt"))) tmp.delete();
+    }
+}
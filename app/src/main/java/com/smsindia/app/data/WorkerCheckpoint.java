@@ -0,0 +1,78 @@
+package com.smsindia.app.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Where the last SmsWorker run stopped, so the next chunk or a restarted run resumes there.
+ *
+ * The cursor is the id of the last task of the last fully handled claim batch; the
+ * stream restarts right after it. Tasks sent after the cursor are kept in a small
+ * id set so a batch that is re-read after a crash does not send them again.
+ */
+public class WorkerCheckpoint {
+
+    private final SharedPreferences prefs;
+
+    public WorkerCheckpoint(Context context) {
+        this(context, null);
+    }
+
+    /** A checkpoint of its own for runs (like push-hinted batches) that must not move the main cursor. */
+    public WorkerCheckpoint(Context context, String scope) {
+        this.prefs = context.getSharedPreferences(
+                scope == null ? "SMSINDIA_CHECKPOINT" : "SMSINDIA_CHECKPOINT_" + scope, Context.MODE_PRIVATE);
+    }
+
+    public String getCursor() {
+        return prefs.getString("cursor", null);
+    }
+
+    public int getSentTotal() {
+        return prefs.getInt("sent_total", 0);
+    }
+
+    public boolean wasSent(String docId) {
+        return prefs.getStringSet("sent_ids", new HashSet<>()).contains(docId);
+    }
+
+    /** Records a send past the cursor. Synchronous, so it is on disk before the next send. */
+    public void markSent(String docId) {
+        Set<String> ids = new HashSet<>(prefs.getStringSet("sent_ids", new HashSet<>()));
+        ids.add(docId);
+        prefs.edit()
+                .putStringSet("sent_ids", ids)
+                .putInt("sent_total", getSentTotal() + 1)
+                .commit();
+    }
+
+    /** Moves the cursor past a fully handled batch; the per-batch sent ids are no longer needed. */
+    public void advance(String lastDocId) {
+        prefs.edit()
+                .putString("cursor", lastDocId)
+                .remove("sent_ids")
+                .commit();
+    }
+
+    /** True once the run has moved on from its own shards to stealing from others. */
+    public boolean isOverflow() {
+        return prefs.getBoolean("overflow", false);
+    }
+
+    /** Switches the run to overflow shards, which are walked from their head. */
+    public void enterOverflow() {
+        prefs.edit()
+                .putBoolean("overflow", true)
+                .remove("cursor")
+                .remove("sent_ids")
+                .commit();
+    }
+
+    /** Called once the stream is exhausted; the next run starts from the head again. */
+    public void clear() {
+        prefs.edit().clear().commit();
+    }
+}
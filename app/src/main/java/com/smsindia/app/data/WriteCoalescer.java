@@ -0,0 +1,239 @@
+package com.smsindia.app.data;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Buffers receiver-side Firestore mutations and commits them as WriteBatches.
+ *
+ * A batch is committed when it reaches Firestore's 500 operation limit, when the
+ * oldest buffered op is older than MAX_AGE_MS, or when flush() is called (SmsWorker
+ * does this when it finishes or is stopped). Ops buffered while a batch was in flight
+ * go out as soon as it completes. Commit latency and batch sizes are tracked so the
+ * thresholds can be tuned from logs.
+ *
+ * Every write returns a task for the commit it ends up in, so a caller learns about
+ * its own writes and nobody else's. Ops that must land together go in one Group,
+ * which is never split across commits. A failed batch's groups are queued again,
+ * with a growing delay, up to MAX_ATTEMPTS commits before their tasks fail.
+ */
+public class WriteCoalescer {
+
+    private static final String TAG = "WriteCoalescer";
+    /** Firestore's limit on operations in one WriteBatch. */
+    public static final int MAX_BATCH = 500;
+    private static final long MAX_AGE_MS = 2000;
+    private static final int MAX_ATTEMPTS = 3;
+
+    private static WriteCoalescer instance;
+
+    private final FirebaseFirestore db;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable ageFlush = this::flush;
+    private final List<Pending> inFlight = new ArrayList<>();
+    private final List<Pending> buffer = new ArrayList<>();
+    private int bufferedOps;
+
+    private long batches;
+    private long ops;
+    private long failedBatches;
+    private long totalLatencyMs;
+    private long maxLatencyMs;
+    private int lastBatchSize;
+
+    private interface Op {
+        void apply(WriteBatch batch);
+    }
+
+    /** Ops that must be committed together, e.g. everything one outbox row writes. */
+    public static final class Group {
+        private final List<Op> ops = new ArrayList<>();
+
+        public Group delete(DocumentReference ref) {
+            ops.add(batch -> batch.delete(ref));
+            return this;
+        }
+
+        public Group set(DocumentReference ref, Map<String, Object> data) {
+            ops.add(batch -> batch.set(ref, data));
+            return this;
+        }
+
+        /** set() with SetOptions.merge(): only the given fields are written. */
+        public Group merge(DocumentReference ref, Map<String, Object> data) {
+            ops.add(batch -> batch.set(ref, data, SetOptions.merge()));
+            return this;
+        }
+
+        public int size() {
+            return ops.size();
+        }
+    }
+
+    /** A buffered group and the task its caller holds. */
+    private static final class Pending {
+        final List<Op> ops;
+        final TaskCompletionSource<Void> done = new TaskCompletionSource<>();
+        int attempts;
+
+        Pending(List<Op> ops) {
+            this.ops = ops;
+        }
+    }
+
+    private WriteCoalescer(FirebaseFirestore db) {
+        this.db = db;
+    }
+
+    public static synchronized WriteCoalescer get() {
+        if (instance == null) instance = new WriteCoalescer(FirebaseFirestore.getInstance());
+        return instance;
+    }
+
+    public Task<Void> delete(DocumentReference ref) {
+        return write(new Group().delete(ref));
+    }
+
+    public Task<Void> set(DocumentReference ref, Map<String, Object> data) {
+        return write(new Group().set(ref, data));
+    }
+
+    /** set() with SetOptions.merge(): only the given fields are written. */
+    public Task<Void> merge(DocumentReference ref, Map<String, Object> data) {
+        return write(new Group().merge(ref, data));
+    }
+
+    /** Like CollectionReference.add(), but the generated document is written in the next batch. */
+    public Task<Void> add(CollectionReference collection, Map<String, Object> data) {
+        return write(new Group().set(collection.document(), data));
+    }
+
+    /**
+     * Buffers the group's ops for one commit. The task completes when that commit is
+     * acknowledged and fails if it fails.
+     */
+    public synchronized Task<Void> write(Group group) {
+        int size = group.size();
+        if (size == 0) return Tasks.forResult(null);
+        if (size > MAX_BATCH) throw new IllegalArgumentException("Group of " + size + " ops");
+        // Commit what is there first rather than split the group
+        if (bufferedOps + size > MAX_BATCH) flush();
+
+        Pending pending = new Pending(new ArrayList<>(group.ops));
+        buffer.add(pending);
+        bufferedOps += size;
+        if (bufferedOps >= MAX_BATCH) {
+            flush();
+        } else if (buffer.size() == 1) {
+            handler.postDelayed(ageFlush, MAX_AGE_MS);
+        }
+        return pending.done.getTask();
+    }
+
+    /**
+     * Commits everything buffered so far. The returned task completes once the writes
+     * buffered or in flight at this call have been acknowledged, and fails if any of
+     * them failed. A caller that only cares about its own writes waits on the tasks
+     * those writes returned instead.
+     */
+    public synchronized Task<Void> flush() {
+        handler.removeCallbacks(ageFlush);
+        while (!buffer.isEmpty()) commit();
+        List<Task<Void>> covered = new ArrayList<>(inFlight.size());
+        for (Pending p : inFlight) covered.add(p.done.getTask());
+        return Tasks.whenAll(covered);
+    }
+
+    /** Commits groups from the head of the buffer, up to MAX_BATCH ops. */
+    private void commit() {
+        int taken = 0;
+        int opCount = 0;
+        while (taken < buffer.size() && opCount + buffer.get(taken).ops.size() <= MAX_BATCH) {
+            opCount += buffer.get(taken++).ops.size();
+        }
+        List<Pending> pending = new ArrayList<>(buffer.subList(0, taken));
+        buffer.subList(0, taken).clear();
+        bufferedOps -= opCount;
+        final int size = opCount;
+
+        WriteBatch batch = db.batch();
+        for (Pending p : pending) {
+            p.attempts++;
+            for (Op op : p.ops) op.apply(batch);
+        }
+        inFlight.addAll(pending);
+
+        final long started = SystemClock.elapsedRealtime();
+        batch.commit().addOnCompleteListener(task -> {
+            long latency = SystemClock.elapsedRealtime() - started;
+            boolean more;
+            List<Pending> exhausted = new ArrayList<>();
+            synchronized (WriteCoalescer.this) {
+                inFlight.removeAll(pending);
+                if (task.isSuccessful()) {
+                    batches++;
+                    ops += size;
+                    totalLatencyMs += latency;
+                    maxLatencyMs = Math.max(maxLatencyMs, latency);
+                    lastBatchSize = size;
+                    Log.d(TAG, "Committed " + size + " ops in " + latency + " ms");
+                    more = !buffer.isEmpty();
+                } else {
+                    failedBatches++;
+                    Log.w(TAG, "Batch of " + size + " failed", task.getException());
+                    // Back at the head of the queue, ahead of anything buffered since
+                    List<Pending> retry = new ArrayList<>();
+                    int attempts = 0;
+                    for (Pending p : pending) {
+                        if (p.attempts < MAX_ATTEMPTS) {
+                            retry.add(p);
+                            attempts = Math.max(attempts, p.attempts);
+                            bufferedOps += p.ops.size();
+                        } else {
+                            exhausted.add(p);
+                        }
+                    }
+                    buffer.addAll(0, retry);
+                    more = false;
+                    if (!retry.isEmpty()) {
+                        handler.removeCallbacks(ageFlush);
+                        handler.postDelayed(ageFlush, MAX_AGE_MS * attempts);
+                    }
+                }
+            }
+            if (task.isSuccessful()) {
+                for (Pending p : pending) p.done.trySetResult(null);
+            } else {
+                Exception failure = task.getException() != null
+                        ? task.getException() : new IllegalStateException("Batch commit cancelled");
+                for (Pending p : exhausted) p.done.trySetException(failure);
+            }
+            // Ops queued during the commit need not wait for the age trigger
+            if (more) flush();
+        });
+    }
+
+    public synchronized String getStats() {
+        long avg = batches == 0 ? 0 : totalLatencyMs / batches;
+        float avgSize = batches == 0 ? 0 : (float) ops / batches;
+        return "batches=" + batches + " ops=" + ops + " failed=" + failedBatches
+                + " avgSize=" + avgSize + " lastSize=" + lastBatchSize
+                + " avgLatencyMs=" + avg + " maxLatencyMs=" + maxLatencyMs
+                + " buffered=" + bufferedOps;
+    }
+}
@@ -0,0 +1,22 @@
+package com.smsindia.app.receivers;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import com.smsindia.app.workers.HeartbeatWorker;
+import com.smsindia.app.workers.OutboxDrainWorker;
+
+/**
+ * Re-arms the outbox drain after a reboot so results recorded before shutdown still reach Firestore,
+ * and makes sure the device heartbeat is scheduled.
+ */
+public class BootReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (!Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) return;
+        OutboxDrainWorker.enqueue(context);
+        HeartbeatWorker.schedule(context);
+    }
+}
@@ -1,77 +1,143 @@
 package com.smsindia.app.receivers;
 
+import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
 import android.widget.Toast;
+import com.smsindia.app.data.MetricsRegistry;
+import com.smsindia.app.sms.FailureClassifier;
 import com.smsindia.app.ui.TaskFragment;
-import com.google.firebase.firestore.FirebaseFirestore;
-import com.google.firebase.firestore.FieldValue;
-import java.util.HashMap;
-import java.util.Map;
+import com.smsindia.app.workers.PartAggregator;
+import com.smsindia.app.workers.RadioBreaker;
+import com.smsindia.app.workers.RateGovernor;
+import com.smsindia.app.workers.SendWindow;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 public class SmsDeliveryReceiver extends BroadcastReceiver {
+    private static final String TAG = "SmsDeliveryReceiver";
+    public static final String ACTION_SENT = "com.smsindia.SMS_SENT";
+    public static final String ACTION_DELIVERED = "com.smsindia.SMS_DELIVERED";
+    private static final Executor executor = Executors.newSingleThreadExecutor();
     private static int failCount = 0;
+    private static final MetricsRegistry.Counter SENT_CALLBACKS = MetricsRegistry.counter("sent_callbacks");
+    private static final MetricsRegistry.Counter SENT_CALLBACK_ERRORS = MetricsRegistry.counter("sent_callback_errors");
+    private static final MetricsRegistry.Counter DELIVERY_REPORTS = MetricsRegistry.counter("delivery_reports");
+    /** Time a callback waits for and spends on the executor, i.e. how far behind the receiver runs. */
+    private static final MetricsRegistry.Histogram RECEIVER_MS = MetricsRegistry.histogram("receiver_ms");
+
+    /**
+     * One PendingIntent per part for the given action, all under the send's correlation
+     * id as request code; the per-part data keeps them (and their extras) apart.
+     * slotId goes on the last sent part only, since that callback frees the window slot.
+     */
+    public static ArrayList<PendingIntent> partIntents(Context context, String action, int corrId,
+                                                       int partCount, String userId, String docId,
+                                                       String phone, int subId, int slotId) {
+        boolean sent = ACTION_SENT.equals(action);
+        ArrayList<PendingIntent> intents = new ArrayList<>(partCount);
+        for (int i = 0; i < partCount; i++) {
+            Intent intent = new Intent(action);
+            intent.setClass(context, SmsDeliveryReceiver.class);
+            intent.setData(Uri.parse("smsindia://" + (sent ? "sent/" : "delivered/") + corrId + "/" + i));
+            intent.putExtra("corrId", corrId);
+            intent.putExtra("userId", userId);
+            intent.putExtra("docId", docId);
+            intent.putExtra("phone", phone);
+            intent.putExtra("subId", subId);
+            intent.putExtra("partIndex", i);
+            intent.putExtra("partCount", partCount);
+            if (sent && slotId > 0 && i == partCount - 1) intent.putExtra("slotId", slotId);
+            intents.add(PendingIntent.getBroadcast(context, corrId, intent,
+                    PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE));
+        }
+        return intents;
+    }
 
     @Override
     public void onReceive(Context context, Intent intent) {
-        int partIndex = intent.getIntExtra("partIndex", 0);
-        if (partIndex != 0) return; // Credit/delete/log only once, on first part
+        final Context appContext = context.getApplicationContext();
+        MetricsRegistry.get().startSnapshots(appContext);
+        final long receivedAt = SystemClock.elapsedRealtime();
+        final int corrId = intent.getIntExtra("corrId", 0);
+        final int partIndex = intent.getIntExtra("partIndex", 0);
 
-        String userId = intent.getStringExtra("userId");
-        String docId = intent.getStringExtra("docId");
-        String phone = intent.getStringExtra("phone");
-        FirebaseFirestore db = FirebaseFirestore.getInstance();
+        if (ACTION_DELIVERED.equals(intent.getAction())) {
+            final byte[] pdu = intent.getByteArrayExtra("pdu");
+            final String format = intent.getStringExtra("format");
+            DELIVERY_REPORTS.inc();
+            final PendingResult pending = goAsync();
+            executor.execute(() -> {
+                try {
+                    PartAggregator.onDelivered(appContext, corrId, partIndex, pdu, format);
+                } catch (Exception e) {
+                    Log.e(TAG, "Delivery report failed for " + corrId, e);
+                } finally {
+                    RECEIVER_MS.record(SystemClock.elapsedRealtime() - receivedAt);
+                    pending.finish();
+                }
+            });
+            return;
+        }
 
-        String status = "failed";
-        switch (getResultCode()) {
+        SendWindow.onSentCallback(intent.getIntExtra("slotId", -1));
+
+        // The breaker trips on the first bad part; the message outcome waits for every part
+        final int resultCode = getResultCode();
+        SENT_CALLBACKS.inc();
+        if (resultCode != android.app.Activity.RESULT_OK) SENT_CALLBACK_ERRORS.inc();
+        int subId = intent.getIntExtra("subId", RateGovernor.DEFAULT_SUBSCRIPTION);
+        if (FailureClassifier.isNoService(resultCode)) {
+            RadioBreaker.peek(subId).trip(RadioBreaker.NO_SERVICE_COOLDOWN_MS);
+        } else if (FailureClassifier.classify(resultCode) == FailureClassifier.Kind.DEVICE_FAULT) {
+            RadioBreaker.peek(subId).trip(RadioBreaker.DEVICE_FAULT_COOLDOWN_MS);
+        }
+
+        // Credit, task delete and log are applied by OutboxDrainWorker. Only the local
+        // append (or retry scheduling) happens here, off the main thread, so the result
+        // survives process death.
+        final Handler main = new Handler(context.getMainLooper());
+        final PendingResult pending = goAsync();
+        executor.execute(() -> {
+            try {
+                PartAggregator.SentOutcome outcome = PartAggregator.onSent(appContext, intent, resultCode);
+                if (outcome != null) main.post(() -> notifyUser(context, outcome));
+            } catch (Exception e) {
+                Log.e(TAG, "Outbox append failed for " + corrId, e);
+            } finally {
+                RECEIVER_MS.record(SystemClock.elapsedRealtime() - receivedAt);
+                pending.finish();
+            }
+        });
+    }
+
+    /** Once per message, after every part's sent callback is in. */
+    private static void notifyUser(Context context, PartAggregator.SentOutcome outcome) {
+        String phone = outcome.phone;
+        switch (outcome.resultCode) {
             case android.app.Activity.RESULT_OK:
-                status = "sent";
                 failCount = 0;
                 Toast.makeText(context, "SMS Sent to " + phone + ". ₹0.16 credited!", Toast.LENGTH_SHORT).show();
 
-                if (userId != null && !userId.isEmpty()) {
-                    db.collection("users")
-                      .document(userId)
-                      .update("balance", FieldValue.increment(0.16));
-                }
-
-                if (docId != null) {
-                    db.collection("sms_tasks").document(docId).delete();
-                }
-
                 if (context instanceof android.app.Activity) {
-                    Handler handler = new Handler(context.getMainLooper());
-                    handler.post(() -> {
-                        TaskFragment.showSuccessUI(((android.app.Activity) context).findViewById(android.R.id.content), phone);
-                    });
+                    TaskFragment.showSuccessUI(((android.app.Activity) context).findViewById(android.R.id.content), phone);
                 }
                 break;
 
             default:
                 failCount++;
                 Toast.makeText(context, "SMS Failed to " + phone, Toast.LENGTH_SHORT).show();
-                if (docId != null) {
-                    db.collection("sms_tasks").document(docId).delete();
-                }
                 if (context instanceof android.app.Activity) {
-                    Handler handler = new Handler(context.getMainLooper());
-                    handler.post(() -> {
-                        TaskFragment.showFailUI(((android.app.Activity) context).findViewById(android.R.id.content),
-                                phone, failCount >= 2);
-                    });
+                    TaskFragment.showFailUI(((android.app.Activity) context).findViewById(android.R.id.content),
+                            phone, failCount >= 2);
                 }
                 break;
         }
-
-        if (userId != null && phone != null) {
-            Map<String, Object> log = new HashMap<>();
-            log.put("userId", userId);
-            log.put("phone", phone);
-            log.put("timestamp", System.currentTimeMillis());
-            log.put("status", status);
-            db.collection("sent_logs").add(log);
-        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,65 @@
+package com.smsindia.app.service;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.smsindia.app.data.WriteCoalescer;
+import com.smsindia.app.workers.SimLane;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Publishes this device's FCM token and sending capacity to devices/{deviceId}, so the
+ * backend can push task batches to devices that can take them.
+ *
+ * The token is kept in SMSINDIA_USER as well: FCM may hand it out before login, when
+ * there is no device id to file it under yet. MainActivity registers again after login.
+ */
+public final class DeviceRegistry {
+
+    private static final String TAG = "DeviceRegistry";
+    private static final int DEFAULT_WINDOW = 4;
+
+    private DeviceRegistry() {
+    }
+
+    public static void register(Context context, String token) {
+        SharedPreferences prefs = context.getSharedPreferences("SMSINDIA_USER", Context.MODE_PRIVATE);
+        if (token != null) prefs.edit().putString("fcmToken", token).apply();
+        else token = prefs.getString("fcmToken", null);
+
+        String deviceId = prefs.getString("deviceId", "");
+        String uid = prefs.getString("mobile", "");
+        if (token == null || deviceId.isEmpty() || uid.isEmpty()) {
+            Log.d(TAG, "Not logged in yet, token kept for later");
+            return;
+        }
+
+        List<SimLane> lanes = SimLane.discover(context);
+        float ratePerMin = 0;
+        for (SimLane lane : lanes) ratePerMin += lane.governor.getRatePerMin();
+        int window = context.getSharedPreferences("SMSINDIA_CONFIG", Context.MODE_PRIVATE)
+                .getInt("send_window", DEFAULT_WINDOW);
+
+        Map<String, Object> device = new HashMap<>();
+        device.put("fcmToken", token);
+        device.put("userId", uid);
+        device.put("simCount", lanes.size());
+        device.put("ratePerMin", ratePerMin);
+        device.put("sendWindow", window * lanes.size());
+        device.put("sdk", Build.VERSION.SDK_INT);
+        device.put("model", Build.MANUFACTURER + " " + Build.MODEL);
+        device.put("registeredAt", FieldValue.serverTimestamp());
+
+        WriteCoalescer.get().merge(
+                FirebaseFirestore.getInstance().collection("devices").document(deviceId), device)
+                .addOnFailureListener(e -> Log.w(TAG, "Could not register " + deviceId, e));
+        Log.d(TAG, "Registered " + deviceId + " with " + lanes.size() + " SIM(s)");
+    }
+}
@@ -5,26 +5,38 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Intent;
 import android.os.Build;
+import android.text.TextUtils;
+import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.core.app.NotificationCompat;
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.WorkManager;
 
 import com.google.firebase.messaging.FirebaseMessagingService;
 import com.google.firebase.messaging.RemoteMessage;
 import com.smsindia.app.MainActivity;
 import com.smsindia.app.R;
+import com.smsindia.app.workers.SmsWorker;
+
+import java.util.Map;
 
 /**
  * ✅ Handles push notifications from Firebase
- * Use to trigger remote SMS syncs or alerts.
+ * Data messages with a batch hint ("taskIds", comma separated, or "shard") start an
+ * expedited SmsWorker run; notification messages are shown as before.
  */
 public class MyFirebaseMessagingService extends FirebaseMessagingService {
 
     private static final String CHANNEL_ID = "firebase_channel";
+    private static final String TAG = "FcmService";
 
     @Override
     public void onMessageReceived(@NonNull RemoteMessage message) {
         super.onMessageReceived(message);
+        if (dispatchBatch(message.getData())) return;
+
         String title = message.getNotification() != null ? message.getNotification().getTitle() : "SMSIndia";
         String body = message.getNotification() != null ? message.getNotification().getBody() : "New update received";
 
@@ -34,7 +46,33 @@ public class MyFirebaseMessagingService extends FirebaseMessagingService {
     @Override
     public void onNewToken(@NonNull String token) {
         super.onNewToken(token);
-        // Optional: Save token to Firestore for admin control
+        DeviceRegistry.register(this, token);
+    }
+
+    /** Enqueues a worker run for a batch hint. Returns false when the message carries none. */
+    private boolean dispatchBatch(Map<String, String> data) {
+        String ids = data.get("taskIds");
+        String shard = data.get("shard");
+        Data.Builder input = new Data.Builder();
+        if (!TextUtils.isEmpty(ids)) {
+            input.putStringArray(SmsWorker.KEY_TASK_IDS, ids.trim().split("\\s*,\\s*"));
+        } else if (!TextUtils.isEmpty(shard)) {
+            try {
+                input.putInt(SmsWorker.KEY_SHARD, Integer.parseInt(shard.trim()));
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Ignoring bad shard hint: " + shard);
+                return false;
+            }
+        } else {
+            return false;
+        }
+        if (getSharedPreferences("SMSINDIA_USER", MODE_PRIVATE).getString("mobile", "").isEmpty()) return true;
+
+        // Appended, so a run already in progress finishes before the hinted batch starts
+        WorkManager.getInstance(this).enqueueUniqueWork(SmsWorker.UNIQUE_WORK,
+                ExistingWorkPolicy.APPEND_OR_REPLACE, SmsWorker.buildRequest(input.build()));
+        Log.d(TAG, "Batch hint received, worker enqueued");
+        return true;
     }
 
     private void showNotification(String title, String msg) {
@@ -0,0 +1,83 @@
+package com.smsindia.app.sms;
+
+import android.app.Activity;
+import android.telephony.SmsManager;
+
+/**
+ * Sorts send outcomes by what should happen to the task.
+ *
+ * RETRYABLE failures are the network's or the moment's (no service, rate limits,
+ * modem hiccups): the task goes to the retry queue. PERMANENT failures are the
+ * task's own (bad PDU, bad arguments, blocked short code): it is dropped and logged.
+ * DEVICE_FAULT means this phone cannot send at all right now (no SMSC, FDN, no SIM);
+ * the task is retried like a retryable one and the lane's breaker opens. Unknown
+ * codes count as retryable, so an unfamiliar code never destroys a task.
+ */
+public final class FailureClassifier {
+
+    public enum Kind { OK, RETRYABLE, PERMANENT, DEVICE_FAULT }
+
+    public static final int MAX_ATTEMPTS = 6;
+
+    private static final long BASE_RETRY_MS = 30 * 1000;
+    private static final long MAX_RETRY_MS = 30 * 60 * 1000;
+
+    private FailureClassifier() {
+    }
+
+    public static Kind classify(int resultCode) {
+        switch (resultCode) {
+            case Activity.RESULT_OK:
+                return Kind.OK;
+
+            case SmsManager.RESULT_ERROR_NULL_PDU:
+            case SmsManager.RESULT_INVALID_ARGUMENTS:
+            case SmsManager.RESULT_INVALID_SMS_FORMAT:
+            case SmsManager.RESULT_ENCODING_ERROR:
+            case SmsManager.RESULT_ERROR_SHORT_CODE_NOT_ALLOWED:
+            case SmsManager.RESULT_ERROR_SHORT_CODE_NEVER_ALLOWED:
+            case SmsManager.RESULT_RIL_INVALID_ARGUMENTS:
+            case SmsManager.RESULT_RIL_INVALID_SMS_FORMAT:
+            case SmsManager.RESULT_RIL_ENCODING_ERR:
+                return Kind.PERMANENT;
+
+            case SmsManager.RESULT_ERROR_FDN_CHECK_FAILURE:
+            case SmsManager.RESULT_INVALID_SMSC_ADDRESS:
+            case SmsManager.RESULT_OPERATION_NOT_ALLOWED:
+            case SmsManager.RESULT_REQUEST_NOT_SUPPORTED:
+            case SmsManager.RESULT_NO_DEFAULT_SMS_APP:
+            case SmsManager.RESULT_RIL_INVALID_SMSC_ADDRESS:
+            case SmsManager.RESULT_RIL_OPERATION_NOT_ALLOWED:
+            case SmsManager.RESULT_RIL_REQUEST_NOT_SUPPORTED:
+            case SmsManager.RESULT_RIL_SIM_ABSENT:
+                return Kind.DEVICE_FAULT;
+
+            default:
+                // RADIO_OFF, NO_SERVICE, LIMIT_EXCEEDED, GENERIC_FAILURE, network and modem errors
+                return Kind.RETRYABLE;
+        }
+    }
+
+    /** For a send that threw before reaching the radio. */
+    public static Kind classify(Throwable error) {
+        if (error instanceof IllegalArgumentException) return Kind.PERMANENT;
+        if (error instanceof SecurityException) return Kind.DEVICE_FAULT;
+        return Kind.RETRYABLE;
+    }
+
+    /** True for codes meaning the radio has no service, which should open the breaker. */
+    public static boolean isNoService(int resultCode) {
+        return resultCode == SmsManager.RESULT_ERROR_NO_SERVICE
+                || resultCode == SmsManager.RESULT_ERROR_RADIO_OFF
+                || resultCode == SmsManager.RESULT_RADIO_NOT_AVAILABLE
+                || resultCode == SmsManager.RESULT_RIL_RADIO_NOT_AVAILABLE
+                || resultCode == SmsManager.RESULT_RIL_NETWORK_NOT_READY;
+    }
+
+    /** Exponential backoff with +-20% jitter: 30 s, 1 min, 2 min ... capped at 30 min. */
+    public static long retryDelayMs(int attempt) {
+        long delay = Math.min(MAX_RETRY_MS, BASE_RETRY_MS << Math.min(Math.max(0, attempt - 1), 16));
+        double jitter = 0.8 + Math.random() * 0.4;
+        return (long) (delay * jitter);
+    }
+}
@@ -0,0 +1,58 @@
+package com.smsindia.app.sms;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A message text with {{name}} placeholders, parsed once into alternating literal and
+ * key segments so rendering is a single append loop.
+ */
+public final class MessageTemplate {
+
+    private final String id;
+    private final String[] literals; // literals.length == keys.length + 1
+    private final String[] keys;
+    private final int literalLength;
+
+    private MessageTemplate(String id, String[] literals, String[] keys) {
+        this.id = id;
+        this.literals = literals;
+        this.keys = keys;
+        int len = 0;
+        for (String l : literals) len += l.length();
+        this.literalLength = len;
+    }
+
+    public static MessageTemplate compile(String id, String text) {
+        List<String> literals = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        int pos = 0;
+        while (true) {
+            int open = text.indexOf("{{", pos);
+            int close = open < 0 ? -1 : text.indexOf("}}", open + 2);
+            if (open < 0 || close < 0) break;
+            literals.add(text.substring(pos, open));
+            keys.add(text.substring(open + 2, close).trim());
+            pos = close + 2;
+        }
+        literals.add(text.substring(pos));
+        return new MessageTemplate(id, literals.toArray(new String[0]), keys.toArray(new String[0]));
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /** Renders with the given parameters, or returns null if one is missing. */
+    public String render(Map<String, ?> params) {
+        if (keys.length == 0) return literals[0];
+        StringBuilder sb = new StringBuilder(literalLength + keys.length * 16);
+        for (int i = 0; i < keys.length; i++) {
+            Object value = params != null ? params.get(keys[i]) : null;
+            if (value == null) return null;
+            sb.append(literals[i]).append(value);
+        }
+        return sb.append(literals[keys.length]).toString();
+    }
+}
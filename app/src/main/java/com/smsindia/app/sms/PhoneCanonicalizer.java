@@ -0,0 +1,107 @@
+package com.smsindia.app.sms;
+
+import java.util.List;
+
+/**
+ * Turns a raw phone number from a task into its E.164 form in one pass, without regex
+ * or intermediate strings.
+ *
+ * The result is a long key holding the E.164 digits (country code first, at most 15
+ * digits), or INVALID. The key doubles as a dedupe key; format() builds the
+ * "+<digits>" string handed to SmsManager.
+ *
+ * Accepted forms: "+<cc><number>" and "00<cc><number>" for international numbers,
+ * and for India a bare 10-digit mobile or "91" + 10 digits, either optionally behind
+ * a trunk "0" (pasted lists often carry "0 91 ..."), where the mobile part starts with
+ * 6-9. Spaces, dashes, dots, slashes and parentheses are ignored; any other character
+ * rejects the number.
+ */
+public final class PhoneCanonicalizer {
+
+    public static final long INVALID = -1;
+
+    private static final int MAX_E164_DIGITS = 15;
+    private static final int MIN_INTERNATIONAL_DIGITS = 8;
+    private static final int INDIA_MOBILE_DIGITS = 10;
+    private static final long INDIA_PREFIX = 91L * 10_000_000_000L;
+
+    private PhoneCanonicalizer() {
+    }
+
+    public static long canonicalize(CharSequence raw) {
+        if (raw == null) return INVALID;
+
+        long digits = 0;
+        int count = 0;
+        int leadingZeros = 0;
+        boolean plus = false;
+        boolean seenDigit = false;
+
+        for (int i = 0, n = raw.length(); i < n; i++) {
+            char c = raw.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (!seenDigit && !plus && c == '0' && leadingZeros < 2) {
+                    // Trunk "0" or international "00"; decided once the digits end
+                    leadingZeros++;
+                    continue;
+                }
+                if (++count > MAX_E164_DIGITS) return INVALID;
+                digits = digits * 10 + (c - '0');
+                seenDigit = true;
+            } else if (c == '+') {
+                if (plus || seenDigit || leadingZeros > 0) return INVALID;
+                plus = true;
+            } else if (c != ' ' && c != '-' && c != '(' && c != ')' && c != '.' && c != '/') {
+                return INVALID;
+            }
+        }
+
+        if (plus || leadingZeros == 2) {
+            // A country code never starts with 0, which a leading zero digit would mean here
+            if (count < MIN_INTERNATIONAL_DIGITS || firstDigit(digits, count) == 0) return INVALID;
+            if (firstDigits(digits, count, 2) == 91) {
+                return isIndianMobile(digits % 10_000_000_000L, count - 2) ? digits : INVALID;
+            }
+            return digits;
+        }
+        // At most one trunk "0" is left here; it changes nothing about the digits after it
+        if (count == INDIA_MOBILE_DIGITS) {
+            return isIndianMobile(digits, count) ? INDIA_PREFIX + digits : INVALID;
+        }
+        if (count == INDIA_MOBILE_DIGITS + 2 && firstDigits(digits, count, 2) == 91) {
+            return isIndianMobile(digits % 10_000_000_000L, INDIA_MOBILE_DIGITS) ? digits : INVALID;
+        }
+        return INVALID;
+    }
+
+    /** Canonicalizes a batch into keys; returns how many entries were valid. */
+    public static int canonicalizeAll(List<? extends CharSequence> raw, long[] out) {
+        int valid = 0;
+        for (int i = 0; i < raw.size(); i++) {
+            out[i] = canonicalize(raw.get(i));
+            if (out[i] != INVALID) valid++;
+        }
+        return valid;
+    }
+
+    /** "+<digits>" for a key returned by canonicalize(). */
+    public static String format(long key) {
+        return "+" + key;
+    }
+
+    private static boolean isIndianMobile(long number, int count) {
+        if (count != INDIA_MOBILE_DIGITS) return false;
+        long first = number / 1_000_000_000L;
+        return first >= 6 && first <= 9;
+    }
+
+    private static long firstDigits(long digits, int count, int k) {
+        long d = digits;
+        for (int i = count; i > k; i--) d /= 10;
+        return d;
+    }
+
+    private static long firstDigit(long digits, int count) {
+        return firstDigits(digits, count, 1);
+    }
+}
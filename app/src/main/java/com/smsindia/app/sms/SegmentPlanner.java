@@ -0,0 +1,161 @@
+package com.smsindia.app.sms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits message text into SMS parts the way the radio will encode them.
+ *
+ * Text that fits the GSM 03.38 7-bit alphabet goes out as GSM-7 (160 septets, or 153
+ * per part when concatenated, extension characters counting as two). Anything else
+ * forces UCS-2 (70 chars, or 67 per part), which roughly doubles the part count. With
+ * substitution on, look-alike characters that commonly sneak in from editors (smart
+ * quotes, dashes, ellipsis, non-breaking space) are replaced by GSM-7 equivalents
+ * first, but only when that makes the whole text GSM-7.
+ *
+ * Plans are cached per text, since a campaign sends the same body to many numbers.
+ */
+public final class SegmentPlanner {
+
+    public enum Encoding { GSM7, UCS2 }
+
+    public static final class Plan {
+        public final Encoding encoding;
+        public final String text;
+        public final List<String> parts;
+
+        Plan(Encoding encoding, String text, List<String> parts) {
+            this.encoding = encoding;
+            this.text = text;
+            this.parts = Collections.unmodifiableList(parts);
+        }
+
+        public int partCount() {
+            return parts.size();
+        }
+    }
+
+    private static final String GSM7_BASIC =
+            "@£$¥èéùìòÇ\nØø\rÅåΔ_ΦΓΛΩΠΨΣΘΞ ÆæßÉ !\"#¤%&'()*+,-./0123456789:;<=>?"
+            + "¡ABCDEFGHIJKLMNOPQRSTUVWXYZÄÖÑÜ§¿abcdefghijklmnopqrstuvwxyzäöñüà";
+    private static final String GSM7_EXTENSION = "\f^{}\\[~]|€";
+
+    private static final int GSM7_SINGLE = 160;
+    private static final int GSM7_MULTI = 153;
+    private static final int UCS2_SINGLE = 70;
+    private static final int UCS2_MULTI = 67;
+    private static final int CACHE_SIZE = 64;
+
+    private static final Map<String, Plan> cache = new LinkedHashMap<String, Plan>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Plan> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private SegmentPlanner() {
+    }
+
+    /** Cached plan for a message body. */
+    public static Plan plan(String text, boolean substitute) {
+        String key = substitute ? text : "\u0000" + text;
+        synchronized (cache) {
+            Plan p = cache.get(key);
+            if (p != null) return p;
+        }
+        Plan p = compute(text, substitute);
+        synchronized (cache) {
+            cache.put(key, p);
+        }
+        return p;
+    }
+
+    static Plan compute(String text, boolean substitute) {
+        if (isGsm7(text)) return new Plan(Encoding.GSM7, text, splitGsm7(text));
+        if (substitute) {
+            String replaced = substituteGsm7(text);
+            if (isGsm7(replaced)) return new Plan(Encoding.GSM7, replaced, splitGsm7(replaced));
+        }
+        return new Plan(Encoding.UCS2, text, splitUcs2(text));
+    }
+
+    public static boolean isGsm7(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (GSM7_BASIC.indexOf(c) < 0 && GSM7_EXTENSION.indexOf(c) < 0) return false;
+        }
+        return true;
+    }
+
+    private static List<String> splitGsm7(String text) {
+        int septets = 0;
+        for (int i = 0; i < text.length(); i++) septets += septets(text.charAt(i));
+        List<String> parts = new ArrayList<>();
+        if (septets <= GSM7_SINGLE) {
+            parts.add(text);
+            return parts;
+        }
+        int start = 0;
+        int used = 0;
+        for (int i = 0; i < text.length(); i++) {
+            int w = septets(text.charAt(i));
+            // An escape pair is never split across parts
+            if (used + w > GSM7_MULTI) {
+                parts.add(text.substring(start, i));
+                start = i;
+                used = 0;
+            }
+            used += w;
+        }
+        parts.add(text.substring(start));
+        return parts;
+    }
+
+    private static List<String> splitUcs2(String text) {
+        List<String> parts = new ArrayList<>();
+        if (text.length() <= UCS2_SINGLE) {
+            parts.add(text);
+            return parts;
+        }
+        int start = 0;
+        while (start < text.length()) {
+            int end = Math.min(start + UCS2_MULTI, text.length());
+            // Keep surrogate pairs (emoji etc.) in one part
+            if (end < text.length() && Character.isHighSurrogate(text.charAt(end - 1))) end--;
+            parts.add(text.substring(start, end));
+            start = end;
+        }
+        return parts;
+    }
+
+    private static int septets(char c) {
+        return GSM7_EXTENSION.indexOf(c) >= 0 ? 2 : 1;
+    }
+
+    private static String substituteGsm7(String text) {
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '‘': case '’': case '‚': case '′':
+                    sb.append('\''); break;
+                case '“': case '”': case '„': case '″':
+                    sb.append('"'); break;
+                case '‐': case '‑': case '‒': case '–': case '—': case '−':
+                    sb.append('-'); break;
+                case '…':
+                    sb.append("..."); break;
+                case '\u00A0': case '\u2007': case '\u202F': case '\t':
+                    sb.append(' '); break;
+                case '•':
+                    sb.append('*'); break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
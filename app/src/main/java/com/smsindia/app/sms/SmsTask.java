@@ -0,0 +1,130 @@
+package com.smsindia.app.sms;
+
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.DocumentSnapshot;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Immutable, decoded form of an sms_tasks document.
+ *
+ * Decoded once when a page arrives, so the send loop reads plain fields instead of
+ * casting map values. The phone is canonicalized at decode time (phoneKey is
+ * PhoneCanonicalizer.INVALID when it cannot be sent to), and message and template
+ * ids are interned per Decoder, so a batch of one campaign shares a single body string.
+ *
+ * priority (higher is more urgent) and expiresAt are optional; expiresAt and createdAt
+ * are read as Firestore timestamps or epoch millis, and 0 means unset.
+ */
+public final class SmsTask {
+
+    public final String id;
+    public final String phone;
+    public final long phoneKey;
+    public final String message;
+    public final String templateId;
+    public final Map<String, Object> params;
+    public final int priority;
+    public final long expiresAt;
+    public final long createdAt;
+
+    /** Earliest deadline first; tasks without one follow, highest priority first, then by id. */
+    public static final Comparator<SmsTask> EARLIEST_DEADLINE_FIRST = (a, b) -> {
+        int c = Long.compare(a.deadline(), b.deadline());
+        if (c != 0) return c;
+        c = Integer.compare(b.priority, a.priority);
+        return c != 0 ? c : a.id.compareTo(b.id);
+    };
+
+    private SmsTask(String id, String phone, long phoneKey, String message,
+                    String templateId, Map<String, Object> params,
+                    int priority, long expiresAt, long createdAt) {
+        this.id = id;
+        this.phone = phone;
+        this.phoneKey = phoneKey;
+        this.message = message;
+        this.templateId = templateId;
+        this.params = params;
+        this.priority = priority;
+        this.expiresAt = expiresAt;
+        this.createdAt = createdAt;
+    }
+
+    public boolean hasValidPhone() {
+        return phoneKey != PhoneCanonicalizer.INVALID;
+    }
+
+    public boolean isExpired(long now) {
+        return expiresAt > 0 && expiresAt <= now;
+    }
+
+    /** Tasks with a deadline or a raised priority; their time-to-send is tracked. */
+    public boolean isUrgent() {
+        return expiresAt > 0 || priority > 0;
+    }
+
+    private long deadline() {
+        return expiresAt > 0 ? expiresAt : Long.MAX_VALUE;
+    }
+
+    /** Decodes documents into tasks, interning repeated strings across everything it decodes. */
+    public static final class Decoder {
+
+        private static final int MAX_INTERNED = 1024;
+
+        private final Map<String, String> interned = new HashMap<>();
+
+        /** Reads fields one at a time; getData() would copy the document into a new map. */
+        public SmsTask decode(DocumentSnapshot doc) {
+            return decode(doc.getId(), doc::get);
+        }
+
+        /** Decodes one task, looking each field up as DocumentSnapshot.get() would. */
+        SmsTask decode(String id, Function<String, Object> field) {
+            Object rawPhone = field.apply("phone");
+            String phone = rawPhone instanceof String ? (String) rawPhone : null;
+            Object rawParams = field.apply("params");
+            Map<String, Object> params = null;
+            if (rawParams instanceof Map) {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> m = (Map<String, Object>) rawParams;
+                params = Collections.unmodifiableMap(m);
+            }
+            Object priority = field.apply("priority");
+            return new SmsTask(
+                    id,
+                    phone,
+                    PhoneCanonicalizer.canonicalize(phone),
+                    intern(string(field.apply("message"))),
+                    intern(string(field.apply("templateId"))),
+                    params,
+                    priority instanceof Number ? ((Number) priority).intValue() : 0,
+                    millis(field.apply("expiresAt")),
+                    millis(field.apply("createdAt")));
+        }
+
+        private static String string(Object value) {
+            return value instanceof String ? (String) value : null;
+        }
+
+        private static long millis(Object value) {
+            if (value instanceof Timestamp) return ((Timestamp) value).toDate().getTime();
+            if (value instanceof Number) return ((Number) value).longValue();
+            return 0;
+        }
+
+        private String intern(String s) {
+            if (s == null) return null;
+            String existing = interned.get(s);
+            if (existing != null) return existing;
+            // Bounded so a stream of unique bodies cannot grow the table forever
+            if (interned.size() >= MAX_INTERNED) interned.clear();
+            interned.put(s, s);
+            return s;
+        }
+    }
+}
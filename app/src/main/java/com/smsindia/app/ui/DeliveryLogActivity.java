@@ -55,7 +55,9 @@ public class DeliveryLogActivity extends AppCompatActivity {
                         if (phone == null || timestamp == null) continue;
 
                         String formatted = android.text.format.DateFormat.format("dd MMM, hh:mm a", timestamp).toString();
-                        addText("Phone: " + phone + "  •  " + formatted);
+                        String delivery = doc.getString("deliveryStatus");
+                        addText("Phone: " + phone + "  •  " + formatted
+                                + (delivery != null ? "  •  " + delivery.replace('_', ' ') : ""));
                     }
                 })
                 .addOnFailureListener(e -> {
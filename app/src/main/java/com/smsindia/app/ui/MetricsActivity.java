@@ -0,0 +1,51 @@
+package com.smsindia.app.ui;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.widget.TextView;
+
+import androidx.appcompat.app.AppCompatActivity;
+
+import com.smsindia.app.R;
+import com.smsindia.app.data.MetricsRegistry;
+
+/** Live counters and latency percentiles of this process; reachable from debug builds. */
+public class MetricsActivity extends AppCompatActivity {
+
+    private static final long REFRESH_MS = 1000;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable refresh = new Runnable() {
+        @Override
+        public void run() {
+            render();
+            handler.postDelayed(this, REFRESH_MS);
+        }
+    };
+    private TextView metricsText;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_metrics);
+        metricsText = findViewById(R.id.metrics_text);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        handler.post(refresh);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        handler.removeCallbacks(refresh);
+    }
+
+    private void render() {
+        metricsText.setText(MetricsRegistry.get().describe()
+                + "\nSnapshots: " + MetricsRegistry.snapshotFile(this).getPath());
+    }
+}
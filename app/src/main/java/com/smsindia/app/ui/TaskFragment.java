@@ -4,14 +4,18 @@ import android.Manifest;
 import android.app.PendingIntent;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.graphics.Color;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.telephony.SmsManager;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
+import android.widget.EditText;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -22,23 +26,66 @@ import androidx.cardview.widget.CardView;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 import androidx.fragment.app.Fragment;
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.WorkInfo;
+import androidx.work.WorkManager;
 
-import com.google.firebase.firestore.DocumentSnapshot;
 import com.google.firebase.firestore.FirebaseFirestore;
 import com.smsindia.app.R;
+import com.smsindia.app.data.BalanceLedger;
+import com.smsindia.app.data.CorrelationRegistry;
+import com.smsindia.app.data.MetricsRegistry;
+import com.smsindia.app.data.SentIdFilter;
+import com.smsindia.app.data.TemplateCache;
+import com.smsindia.app.data.WorkerCheckpoint;
+import com.smsindia.app.data.WriteCoalescer;
+import com.smsindia.app.receivers.SmsDeliveryReceiver;
+import com.smsindia.app.sms.PhoneCanonicalizer;
+import com.smsindia.app.sms.SegmentPlanner;
+import com.smsindia.app.sms.SmsTask;
+import com.smsindia.app.workers.ShardAssignment;
+import com.smsindia.app.workers.SimLane;
+import com.smsindia.app.workers.SmsWorker;
+import com.smsindia.app.workers.TaskLease;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 public class TaskFragment extends Fragment {
 
+    private static final String TAG = "TaskFragment";
     private static final int SMS_PERMISSION_CODE = 1001;
-    private Button fetchNextBtn, sendSingleBtn, viewLogsBtn;
+    private static final int PREFETCH_TARGET = 5;
+    private static final int PREFETCH_LOW_WATER = 2;
+    private static final MetricsRegistry.Histogram TAP_TO_TASK_MS = MetricsRegistry.histogram("tap_to_task_ms");
+    private static final MetricsRegistry.Counter MANUAL_SENDS = MetricsRegistry.counter("manual_sends");
+    private Button fetchNextBtn, sendSingleBtn, viewLogsBtn, viewMetricsBtn;
     private TextView tvFetchNumber, tvFetchMessage, statusMessage, failHint;
     private ProgressBar sendingProgress;
     private CardView statusCard;
+    private EditText etBulkCount;
+    private TextView tvBulkProgress;
+    private ProgressBar bulkProgress;
+    private Button bulkStartBtn, bulkPauseBtn, bulkCancelBtn;
+    // Set by Cancel; the checkpoint is wiped again once the stopped worker has written its last state
+    private boolean clearCheckpointOnStop;
 
     private String curPhone, curMessage, curDocId;
+    private boolean curDispatched;
     private int failCount = 0;
+    private TaskLease lease;
+    private TaskPrefetcher prefetcher;
+
+    @Override
+    public void onCreate(@Nullable Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        lease = new TaskLease(requireContext());
+        prefetcher = new TaskPrefetcher(requireContext(), lease,
+                ShardAssignment.forDevice(requireContext()), PREFETCH_TARGET, PREFETCH_LOW_WATER);
+        prefetcher.start();
+    }
 
     @Nullable
     @Override
@@ -56,30 +103,143 @@ public class TaskFragment extends Fragment {
         fetchNextBtn = v.findViewById(R.id.btn_fetch_next);
         sendSingleBtn = v.findViewById(R.id.btn_send_single);
         viewLogsBtn = v.findViewById(R.id.btn_view_logs);
+        viewMetricsBtn = v.findViewById(R.id.btn_view_metrics);
+        etBulkCount = v.findViewById(R.id.et_bulk_count);
+        tvBulkProgress = v.findViewById(R.id.tv_bulk_progress);
+        bulkProgress = v.findViewById(R.id.bulk_progress);
+        bulkStartBtn = v.findViewById(R.id.btn_bulk_start);
+        bulkPauseBtn = v.findViewById(R.id.btn_bulk_pause);
+        bulkCancelBtn = v.findViewById(R.id.btn_bulk_cancel);
 
         checkAndRequestSmsPermissions();
 
         fetchNextBtn.setOnClickListener(view -> fetchNextTask());
         sendSingleBtn.setOnClickListener(view -> sendCurrentTask());
         viewLogsBtn.setOnClickListener(v1 -> startActivity(new Intent(requireContext(), DeliveryLogActivity.class)));
+        // Debug builds only; BuildConfig is not generated for this module
+        if ((requireContext().getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
+            viewMetricsBtn.setVisibility(View.VISIBLE);
+            viewMetricsBtn.setOnClickListener(v1 -> startActivity(new Intent(requireContext(), MetricsActivity.class)));
+        }
+        bulkStartBtn.setOnClickListener(view -> startBulk());
+        bulkPauseBtn.setOnClickListener(view -> stopBulk(false));
+        bulkCancelBtn.setOnClickListener(view -> stopBulk(true));
 
         showReadyUI();
         return v;
     }
 
+    @Override
+    public void onViewCreated(@NonNull View view, @Nullable Bundle savedInstanceState) {
+        super.onViewCreated(view, savedInstanceState);
+        // WorkInfo updates arrive on the main thread; the worker itself never touches the UI
+        WorkManager.getInstance(requireContext())
+                .getWorkInfosForUniqueWorkLiveData(SmsWorker.UNIQUE_WORK)
+                .observe(getViewLifecycleOwner(), this::renderBulk);
+    }
+
+    private void startBulk() {
+        int count;
+        try {
+            count = Integer.parseInt(etBulkCount.getText().toString().trim());
+        } catch (NumberFormatException e) {
+            count = 0;
+        }
+        if (count <= 0) {
+            tvBulkProgress.setText("Enter how many SMS to send.");
+            return;
+        }
+        if (!hasSmsPermissions()) {
+            tvBulkProgress.setText("SMS permission missing. Please grant and retry.");
+            checkAndRequestSmsPermissions();
+            return;
+        }
+        clearCheckpointOnStop = false;
+        Data input = new Data.Builder().putInt(SmsWorker.KEY_MAX_COUNT, count).build();
+        // A paused run resumes from its checkpoint, counting what it already sent
+        WorkManager.getInstance(requireContext()).enqueueUniqueWork(
+                SmsWorker.UNIQUE_WORK, ExistingWorkPolicy.KEEP, SmsWorker.buildRequest(input));
+        tvBulkProgress.setText("Starting...");
+    }
+
+    /** Pause keeps the checkpoint so Start resumes; cancel also forgets it. */
+    private void stopBulk(boolean cancel) {
+        clearCheckpointOnStop = cancel;
+        WorkManager.getInstance(requireContext()).cancelUniqueWork(SmsWorker.UNIQUE_WORK);
+        if (cancel) new WorkerCheckpoint(requireContext()).clear();
+    }
+
+    private void renderBulk(List<WorkInfo> infos) {
+        WorkInfo active = null;
+        WorkInfo last = null;
+        for (WorkInfo info : infos) {
+            if (!info.getState().isFinished()) active = info;
+            else last = info;
+        }
+
+        bulkStartBtn.setEnabled(active == null);
+        bulkPauseBtn.setEnabled(active != null);
+        bulkCancelBtn.setEnabled(active != null);
+
+        if (active != null) {
+            Data p = active.getProgress();
+            int sent = p.getInt("sent", 0);
+            int target = p.getInt("target", 0);
+            bulkProgress.setVisibility(View.VISIBLE);
+            bulkProgress.setMax(Math.max(target, 1));
+            bulkProgress.setProgress(sent);
+            String lanes = p.getString("lanes");
+            String paused = p.getString("paused");
+            String power = p.getString("power");
+            String line = "Sent " + sent + (target > 0 ? "/" + target : "");
+            if (paused != null) line = "Paused (" + paused + ") · " + line;
+            else if (lanes != null) line += " · " + lanes + (power != null ? " · " + power : "");
+            tvBulkProgress.setText(active.getState() == WorkInfo.State.RUNNING ? line : "Waiting to start...");
+            return;
+        }
+
+        bulkProgress.setVisibility(View.GONE);
+        WorkerCheckpoint checkpoint = new WorkerCheckpoint(requireContext());
+        if (clearCheckpointOnStop) {
+            checkpoint.clear();
+            clearCheckpointOnStop = false;
+            tvBulkProgress.setText("Cancelled.");
+        } else if (last != null && last.getState() == WorkInfo.State.SUCCEEDED) {
+            tvBulkProgress.setText("Done. Sent " + last.getOutputData().getInt("sent", 0) + " SMS.");
+        } else if (last != null && last.getState() == WorkInfo.State.FAILED) {
+            tvBulkProgress.setText("Stopped: " + last.getOutputData().getString("error"));
+        } else if (checkpoint.getSentTotal() > 0 || checkpoint.getCursor() != null) {
+            tvBulkProgress.setText("Paused after " + checkpoint.getSentTotal() + " SMS. Start resumes.");
+        }
+        bulkStartBtn.setText(checkpoint.getCursor() != null ? "Resume" : "Start");
+    }
+
     private void fetchNextTask() {
         showReadyUI();
-        FirebaseFirestore.getInstance()
-            .collection("sms_tasks").limit(1).get()
-            .addOnSuccessListener(snapshot -> {
-                if (!snapshot.isEmpty()) {
-                    DocumentSnapshot doc = snapshot.getDocuments().get(0);
-                    curPhone = doc.getString("phone");
-                    curMessage = doc.getString("message");
-                    curDocId = doc.getId();
+        releaseUnsentCurrent();
+        long tappedAt = SystemClock.elapsedRealtime();
+        boolean prefetched = prefetcher.ready() > 0;
+        prefetcher.next()
+            .addOnSuccessListener(task -> {
+                if (!isAdded()) return;
+                long tapToTask = SystemClock.elapsedRealtime() - tappedAt;
+                TAP_TO_TASK_MS.record(tapToTask);
+                Log.d(TAG, "Tap to task: " + tapToTask
+                        + " ms (" + (prefetched ? "prefetched" : "fetched") + ")");
+                if (task != null) {
+                    curPhone = task.phone;
+                    curMessage = null;
+                    curDocId = task.id;
+                    curDispatched = false;
 
                     tvFetchNumber.setText("Number: " + (curPhone != null ? curPhone : ""));
-                    tvFetchMessage.setText("Content: " + (curMessage != null ? curMessage : ""));
+                    tvFetchMessage.setText("Content: ");
+                    // Plain messages resolve at once; template tasks may need one fetch
+                    TemplateCache.get(requireContext()).resolveMessage(task).addOnCompleteListener(t -> {
+                        if (!isAdded() || !task.id.equals(curDocId)) return;
+                        curMessage = t.isSuccessful() ? t.getResult() : null;
+                        tvFetchMessage.setText("Content: " + (curMessage != null ? curMessage : ""));
+                    });
                 } else {
                     tvFetchNumber.setText("Number: ");
                     tvFetchMessage.setText("Content: ");
@@ -89,6 +249,7 @@ public class TaskFragment extends Fragment {
                 }
             })
             .addOnFailureListener(e -> {
+                if (!isAdded()) return;
                 statusMessage.setText("Error fetching task: " + e.getMessage());
                 statusCard.setCardBackgroundColor(Color.parseColor("#FFCDD2")); // light red
             });
@@ -103,6 +264,28 @@ public class TaskFragment extends Fragment {
             sendSingleBtn.setEnabled(true);
             return;
         }
+        long phoneKey = PhoneCanonicalizer.canonicalize(curPhone);
+        if (phoneKey == PhoneCanonicalizer.INVALID) {
+            statusMessage.setText("Invalid number " + curPhone + ". Task skipped, please fetch next.");
+            statusCard.setCardBackgroundColor(Color.parseColor("#FFCDD2"));
+            if (curDocId != null) {
+                String docId = curDocId;
+                WriteCoalescer.get().delete(
+                        FirebaseFirestore.getInstance().collection("sms_tasks").document(docId))
+                        .addOnFailureListener(e -> Log.w(TAG, "Could not drop invalid task " + docId, e));
+            }
+            curPhone = curMessage = curDocId = null;
+            sendSingleBtn.setEnabled(true);
+            return;
+        }
+        String cleanPhone = PhoneCanonicalizer.format(phoneKey);
+        SentIdFilter sentIds = SentIdFilter.get(requireContext());
+        if (curDocId != null && sentIds != null && sentIds.mightContain(curDocId)) {
+            statusMessage.setText("This task was already sent from this device. Please fetch next.");
+            statusCard.setCardBackgroundColor(Color.parseColor("#FFECB3"));
+            sendSingleBtn.setEnabled(true);
+            return;
+        }
         if (!hasSmsPermissions()) {
             statusMessage.setText("SMS permission missing. Please grant and retry.");
             statusCard.setCardBackgroundColor(Color.parseColor("#FFCDD2"));
@@ -111,42 +294,63 @@ public class TaskFragment extends Fragment {
         }
 
         showSendingUI();
+        int corrId = 0;
         try {
             SharedPreferences prefs = requireActivity().getSharedPreferences("SMSINDIA_USER", 0);
             String userId = prefs.getString("mobile", "");
 
-            SmsManager sms = SmsManager.getDefault();
-            ArrayList<String> parts = sms.divideMessage(curMessage);
-            ArrayList<PendingIntent> sentIntents = new ArrayList<>();
-
-            for (int i = 0; i < parts.size(); i++) {
-                Intent sent = new Intent("com.smsindia.SMS_SENT");
-                sent.setClass(requireContext(), com.smsindia.app.receivers.SmsDeliveryReceiver.class);
-                sent.putExtra("userId", userId);
-                sent.putExtra("docId", curDocId);
-                sent.putExtra("phone", curPhone);
-                sent.putExtra("partIndex", i);
-                sent.putExtra("partCount", parts.size());
-
-                PendingIntent sentPI = PendingIntent.getBroadcast(
-                    requireContext(),
-                    (curDocId != null ? curDocId.hashCode() : 0) + i,
-                    sent,
-                    PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE
-                );
-                sentIntents.add(sentPI);
-            }
-
-            sms.sendMultipartTextMessage(curPhone, null, parts, sentIntents, null);
+            SimLane lane = SimLane.pick(SimLane.discover(requireContext()));
+            SmsManager sms = lane.sms;
+            boolean substitute = requireContext().getSharedPreferences("SMSINDIA_CONFIG", 0)
+                    .getBoolean("gsm_substitute", true);
+            ArrayList<String> parts = new ArrayList<>(SegmentPlanner.plan(curMessage, substitute).parts);
+            corrId = CorrelationRegistry.get(requireContext()).open(curDocId, userId, cleanPhone,
+                    lane.subId, parts.size(), System.currentTimeMillis());
+            ArrayList<PendingIntent> sentIntents = SmsDeliveryReceiver.partIntents(requireContext(),
+                    SmsDeliveryReceiver.ACTION_SENT, corrId, parts.size(), userId, curDocId, cleanPhone,
+                    lane.subId, -1);
+            ArrayList<PendingIntent> deliveryIntents = SmsDeliveryReceiver.partIntents(requireContext(),
+                    SmsDeliveryReceiver.ACTION_DELIVERED, corrId, parts.size(), userId, curDocId, cleanPhone,
+                    lane.subId, -1);
+
+            sms.sendMultipartTextMessage(cleanPhone, null, parts, sentIntents, deliveryIntents);
+            lane.onDispatched();
+            MANUAL_SENDS.inc();
+            curDispatched = true;
+            if (curDocId != null && sentIds != null) sentIds.add(curDocId);
 
             statusMessage.setText("Sending SMS...");
             sendingProgress.setVisibility(View.VISIBLE);
         } catch (Exception e) {
+            if (corrId != 0) CorrelationRegistry.get(requireContext()).close(corrId);
             showFailUI(getView(), curPhone != null ? curPhone : "Unknown", failCount++ > 0);
             sendSingleBtn.setEnabled(true);
         }
     }
 
+    @Override
+    public void onPause() {
+        super.onPause();
+        // Manual sends are slow, so push pending credits out whenever the user leaves the tab
+        String userId = requireActivity().getSharedPreferences("SMSINDIA_USER", 0).getString("mobile", "");
+        if (!userId.isEmpty()) BalanceLedger.get(requireContext(), userId).flush();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        releaseUnsentCurrent();
+        prefetcher.close();
+    }
+
+    /** Hands a displayed but unsent task back, so skipping it does not hold it for a whole lease. */
+    private void releaseUnsentCurrent() {
+        if (curDocId != null && !curDispatched) {
+            lease.release(Collections.singletonList(curDocId));
+        }
+        curDispatched = true;
+    }
+
     // UI Helpers
     private void showReadyUI() {
         statusMessage.setText("Ready to send SMS");
@@ -0,0 +1,233 @@
+package com.smsindia.app.ui;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Query;
+import com.smsindia.app.data.MetricsRegistry;
+import com.smsindia.app.data.OutboxDb;
+import com.smsindia.app.sms.SmsTask;
+import com.smsindia.app.workers.OutboxDrainWorker;
+import com.smsindia.app.workers.RateGovernor;
+import com.smsindia.app.workers.ShardAssignment;
+import com.smsindia.app.workers.TaskLease;
+import com.smsindia.app.workers.TaskStream;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps a few leased tasks ready for the manual "fetch next" flow.
+ *
+ * Tasks are claimed ahead in the background and topped up whenever the queue drops to
+ * the low-water mark, so next() usually completes at once. The scan walks this
+ * device's shards by document id from where the previous refill stopped instead of
+ * always reading the head, which is where every other device is looking too. When
+ * its shards have nothing free and overflow is allowed, it scans the overflow shards.
+ * Ready tasks are handed out earliest deadline first. Expired ones go to the outbox
+ * as "expired", like SmsWorker's, so the drain deletes them instead of leaving them
+ * for the next device to claim.
+ *
+ * Main thread only: the state is touched from Task callbacks, which run there.
+ */
+class TaskPrefetcher {
+
+    private static final String TAG = "TaskPrefetcher";
+    private static final int CANDIDATES_PER_CLAIM = 2;
+    /** Firestore round trip of one refill scan, before the claim. */
+    private static final MetricsRegistry.Histogram PREFETCH_MS = MetricsRegistry.histogram("firestore_prefetch_ms");
+
+    private static final class Entry {
+        final SmsTask task;
+        final long claimedAt;
+
+        Entry(SmsTask task, long claimedAt) {
+            this.task = task;
+            this.claimedAt = claimedAt;
+        }
+    }
+
+    private final Context context;
+    private final FirebaseFirestore db = FirebaseFirestore.getInstance();
+    private static final Executor IO = Executors.newSingleThreadExecutor();
+    private final SmsTask.Decoder decoder = new SmsTask.Decoder();
+    private final TaskLease lease;
+    private final ShardAssignment shards;
+    private final int target;
+    private final int lowWater;
+
+    private final PriorityQueue<Entry> queue = new PriorityQueue<>(
+            (a, b) -> SmsTask.EARLIEST_DEADLINE_FIRST.compare(a.task, b.task));
+    private final ArrayDeque<TaskCompletionSource<SmsTask>> waiters = new ArrayDeque<>();
+    // Ids queued or already handed out; excluded from claims, since a lease we own counts as claimable
+    private final Set<String> seenIds = new HashSet<>();
+
+    private String cursorId;
+    private boolean overflowing;
+    private boolean refilling;
+    private boolean closed;
+
+    TaskPrefetcher(Context context, TaskLease lease, ShardAssignment shards, int target, int lowWater) {
+        this.context = context.getApplicationContext();
+        this.lease = lease;
+        this.shards = shards;
+        this.target = target;
+        this.lowWater = lowWater;
+    }
+
+    /** Starts filling the queue before the first tap. */
+    void start() {
+        refill();
+    }
+
+    /** The next claimed task, or null once no free task is left. */
+    Task<SmsTask> next() {
+        TaskCompletionSource<SmsTask> source = new TaskCompletionSource<>();
+        waiters.add(source);
+        deliver();
+        if (queue.size() <= lowWater) refill();
+        return source.getTask();
+    }
+
+    /** Tasks ready to be handed out without a round trip. */
+    int ready() {
+        return queue.size();
+    }
+
+    /** Releases every queued claim; the prefetcher is unusable afterwards. */
+    void close() {
+        closed = true;
+        List<String> ids = new ArrayList<>();
+        for (Entry e : queue) ids.add(e.task.id);
+        queue.clear();
+        for (TaskCompletionSource<SmsTask> w : waiters) w.trySetResult(null);
+        waiters.clear();
+        if (!ids.isEmpty()) {
+            lease.release(ids).addOnFailureListener(e -> Log.w(TAG, "Release of " + ids.size() + " tasks failed", e));
+        }
+    }
+
+    private void deliver() {
+        long now = SystemClock.elapsedRealtime();
+        List<String> dropped = new ArrayList<>();
+        List<SmsTask> expired = new ArrayList<>();
+        while (!waiters.isEmpty() && !queue.isEmpty()) {
+            Entry e = queue.poll();
+            // A lease about to run out may be taken over by another device mid-send;
+            // handed back, it can be claimed afresh by a later refill
+            if (now - e.claimedAt > lease.getTtlMs() / 2) {
+                dropped.add(e.task.id);
+                seenIds.remove(e.task.id);
+                continue;
+            }
+            if (e.task.isExpired(System.currentTimeMillis())) {
+                expired.add(e.task);
+                continue;
+            }
+            waiters.poll().trySetResult(e.task);
+        }
+        if (!dropped.isEmpty()) {
+            lease.release(dropped).addOnFailureListener(e -> Log.w(TAG, "Release of " + dropped.size() + " tasks failed", e));
+        }
+        if (!expired.isEmpty()) dropExpired(expired);
+    }
+
+    /** Still leased to us, so no other device sends them before the drain deletes them. */
+    private void dropExpired(List<SmsTask> expired) {
+        String uid = context.getSharedPreferences("SMSINDIA_USER", Context.MODE_PRIVATE)
+                .getString("mobile", "");
+        IO.execute(() -> {
+            OutboxDb outbox = OutboxDb.get(context);
+            for (SmsTask task : expired) {
+                Log.w(TAG, "Task " + task.id + " expired before sending, dropping");
+                outbox.append(uid, task.id, task.phone, "expired", 0, RateGovernor.DEFAULT_SUBSCRIPTION);
+            }
+            OutboxDrainWorker.enqueue(context);
+        });
+    }
+
+    private void refill() {
+        if (refilling || closed) return;
+        int want = target - queue.size();
+        if (want <= 0) return;
+        refilling = true;
+
+        int limit = want * CANDIDATES_PER_CLAIM;
+        Query q = TaskStream.shardQuery(db, overflowing ? shards.overflowShards() : shards.ownShards())
+                .orderBy(FieldPath.documentId());
+        if (cursorId != null) q = q.startAfter(cursorId);
+        boolean[] reachedEnd = new boolean[1];
+        long startedAt = SystemClock.elapsedRealtime();
+
+        q.limit(limit).get().continueWithTask(query -> {
+            PREFETCH_MS.record(SystemClock.elapsedRealtime() - startedAt);
+            List<DocumentSnapshot> docs = query.getResult().getDocuments();
+            reachedEnd[0] = docs.size() < limit;
+            // Wrap to the head once the tail is reached
+            cursorId = reachedEnd[0] || docs.isEmpty() ? null : docs.get(docs.size() - 1).getId();
+
+            List<SmsTask> candidates = new ArrayList<>(docs.size());
+            for (DocumentSnapshot doc : docs) {
+                if (!seenIds.contains(doc.getId())) candidates.add(decoder.decode(doc));
+            }
+            if (candidates.isEmpty()) return Tasks.forResult(new ArrayList<SmsTask>());
+            return lease.claim(candidates, want);
+        }).addOnCompleteListener(t -> {
+            refilling = false;
+            if (!t.isSuccessful()) {
+                Log.w(TAG, "Refill failed", t.getException());
+                failWaiters(t.getException());
+                return;
+            }
+            List<SmsTask> claimed = t.getResult();
+            if (closed) {
+                List<String> ids = new ArrayList<>();
+                for (SmsTask task : claimed) ids.add(task.id);
+                if (!ids.isEmpty()) lease.release(ids);
+                return;
+            }
+
+            long now = SystemClock.elapsedRealtime();
+            for (SmsTask task : claimed) {
+                queue.add(new Entry(task, now));
+                seenIds.add(task.id);
+            }
+            Log.d(TAG, "Claimed " + claimed.size() + ", ready " + queue.size());
+            deliver();
+
+            boolean ownDry = claimed.isEmpty() && reachedEnd[0] && !overflowing;
+            // Every pass that reaches the tail starts over on the own shards
+            if (reachedEnd[0]) overflowing = false;
+
+            if (ownDry && shards.allowsOverflow()) {
+                // Own shards have nothing free; try the overflow shards from their head
+                overflowing = true;
+                refill();
+            } else if (claimed.isEmpty() && reachedEnd[0]) {
+                // Nothing free up to the tail; the next tap scans again from the head
+                for (TaskCompletionSource<SmsTask> w : waiters) w.trySetResult(null);
+                waiters.clear();
+            } else if (queue.size() <= lowWater || !waiters.isEmpty()) {
+                refill();
+            }
+        });
+    }
+
+    private void failWaiters(Exception e) {
+        for (TaskCompletionSource<SmsTask> w : waiters) w.trySetException(e);
+        waiters.clear();
+    }
+}
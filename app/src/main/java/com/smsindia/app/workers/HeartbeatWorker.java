@@ -0,0 +1,105 @@
+package com.smsindia.app.workers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.BatteryManager;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.Constraints;
+import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.PeriodicWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.smsindia.app.data.DeviceStats;
+import com.smsindia.app.data.WriteCoalescer;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reports this device's recent throughput and headroom to devices/{deviceId} every
+ * 15 minutes (WorkManager's minimum period), so the backend can size shards per device.
+ *
+ * One merge write per run, on the same coalesced path as other device writes.
+ */
+public class HeartbeatWorker extends Worker {
+
+    private static final String TAG = "HeartbeatWorker";
+    private static final String UNIQUE_NAME = "device_heartbeat";
+    private static final long PERIOD_MIN = 15;
+    private static final long COMMIT_TIMEOUT_S = 30;
+
+    public HeartbeatWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+    }
+
+    /** Schedules the heartbeat; an existing schedule is kept. */
+    public static void schedule(Context context) {
+        PeriodicWorkRequest request = new PeriodicWorkRequest.Builder(
+                HeartbeatWorker.class, PERIOD_MIN, TimeUnit.MINUTES)
+                .setConstraints(new Constraints.Builder()
+                        .setRequiredNetworkType(NetworkType.CONNECTED)
+                        .build())
+                .build();
+        WorkManager.getInstance(context).enqueueUniquePeriodicWork(
+                UNIQUE_NAME, ExistingPeriodicWorkPolicy.KEEP, request);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        Context context = getApplicationContext();
+        SharedPreferences prefs = context.getSharedPreferences("SMSINDIA_USER", Context.MODE_PRIVATE);
+        String deviceId = prefs.getString("deviceId", "");
+        if (deviceId.isEmpty()) return Result.success();
+
+        // Settles messages whose callbacks never came, even when no SmsWorker runs
+        PartAggregator.sweep(context);
+
+        long now = System.currentTimeMillis();
+        DeviceStats.Interval interval = new DeviceStats(context).interval(now);
+        List<SimLane> lanes = SimLane.discover(context);
+        float governorRate = 0;
+        for (SimLane lane : lanes) governorRate += lane.governor.getRatePerMin();
+
+        Map<String, Object> beat = new HashMap<>();
+        beat.put("sentPerMin", interval.ratePerMin());
+        beat.put("sentInInterval", interval.ok);
+        beat.put("failedInInterval", interval.failed);
+        beat.put("successRatio", interval.successRatio());
+        beat.put("simCount", lanes.size());
+        beat.put("ratePerMin", governorRate);
+        beat.put("quotaRemaining", RateGovernor.appQuota(context).remaining(now));
+        BatteryManager bm = context.getSystemService(BatteryManager.class);
+        if (bm != null) {
+            beat.put("batteryPct", bm.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY));
+            beat.put("charging", bm.isCharging());
+        }
+        beat.put("heartbeatAt", FieldValue.serverTimestamp());
+
+        WriteCoalescer writes = WriteCoalescer.get();
+        Task<Void> written = writes.merge(
+                FirebaseFirestore.getInstance().collection("devices").document(deviceId), beat);
+        writes.flush();
+        try {
+            Tasks.await(written, COMMIT_TIMEOUT_S, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            // The interval is already marked; the next beat reports from there
+            Log.w(TAG, "Heartbeat write failed", e);
+            return Result.retry();
+        }
+        Log.d(TAG, "Heartbeat: " + interval.ok + " sent, " + interval.failed + " failed, "
+                + lanes.size() + " SIM(s)");
+        return Result.success();
+    }
+}
@@ -0,0 +1,173 @@
+package com.smsindia.app.workers;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.Constraints;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.smsindia.app.data.BalanceLedger;
+import com.smsindia.app.data.DeviceStats;
+import com.smsindia.app.data.OutboxDb;
+import com.smsindia.app.data.WriteCoalescer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Drains the local delivery-result outbox to Firestore once the network is up.
+ *
+ * For each row: credit the ledger, delete the task and write its sent_logs entry.
+ * Rows are deleted only after the batch commit is acknowledged, so a killed or
+ * retried drain replays them; the ledger dedupes by task id and the log id is stable.
+ *
+ * Delivery rows (see PartAggregator) only add the delivery state to the message's
+ * sent_logs entry. Both kinds merge into one document keyed by task id, whichever
+ * lands first.
+ */
+public class OutboxDrainWorker extends Worker {
+
+    private static final String TAG = "OutboxDrainWorker";
+    private static final String UNIQUE_NAME = "outbox_drain";
+    private static final int BATCH = 400;
+    private static final long COMMIT_TIMEOUT_S = 60;
+
+    private static final AtomicBoolean running = new AtomicBoolean();
+    private static final AtomicBoolean followUpQueued = new AtomicBoolean();
+
+    public OutboxDrainWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+    }
+
+    /**
+     * Schedules a drain when connected. A drain that is already queued is kept. While
+     * one is running, a single follow-up is appended behind it: rows written after its
+     * last peek would otherwise wait for some unrelated enqueue.
+     */
+    public static void enqueue(Context context) {
+        boolean appendFollowUp = running.get() && followUpQueued.compareAndSet(false, true);
+        schedule(context, appendFollowUp ? ExistingWorkPolicy.APPEND_OR_REPLACE : ExistingWorkPolicy.KEEP);
+    }
+
+    private static void schedule(Context context, ExistingWorkPolicy policy) {
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(OutboxDrainWorker.class)
+                .setConstraints(new Constraints.Builder()
+                        .setRequiredNetworkType(NetworkType.CONNECTED)
+                        .build())
+                .setInitialDelay(2, TimeUnit.SECONDS)
+                .build();
+        WorkManager.getInstance(context).enqueueUniqueWork(UNIQUE_NAME, policy, request);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        Context context = getApplicationContext();
+        OutboxDb outbox = OutboxDb.get(context);
+        FirebaseFirestore db = FirebaseFirestore.getInstance();
+        WriteCoalescer writes = WriteCoalescer.get();
+        DeviceStats stats = new DeviceStats(context);
+        Set<String> users = new HashSet<>();
+        running.set(true);
+        followUpQueued.set(false);
+
+        try {
+            while (!isStopped()) {
+                List<OutboxDb.Entry> entries = outbox.peek(BATCH);
+                if (entries.isEmpty()) break;
+
+                int ok = 0;
+                int failed = 0;
+                int batchOps = 0;
+                long lastId = -1;
+                int drained = 0;
+                List<Task<Void>> committed = new ArrayList<>();
+                for (OutboxDb.Entry e : entries) {
+                    WriteCoalescer.Group group = new WriteCoalescer.Group();
+                    boolean hasUser = e.userId != null && !e.userId.isEmpty();
+                    boolean sent = false;
+                    if (isDelivery(e.status)) {
+                        if (hasUser) {
+                            Map<String, Object> delivery = new HashMap<>();
+                            delivery.put("userId", e.userId);
+                            delivery.put("deliveryStatus", e.status);
+                            delivery.put("deliveryLatencyMs", e.latencyMs);
+                            delivery.put("deliveryAt", e.timestamp);
+                            group.merge(logRef(db, e), delivery);
+                        }
+                    } else {
+                        sent = "sent".equals(e.status);
+                        if (e.docId != null) {
+                            group.delete(db.collection("sms_tasks").document(e.docId));
+                        }
+                        if (hasUser && e.phone != null) {
+                            Map<String, Object> log = new HashMap<>();
+                            log.put("userId", e.userId);
+                            log.put("phone", e.phone);
+                            log.put("timestamp", e.timestamp);
+                            log.put("status", e.status);
+                            group.merge(logRef(db, e), log);
+                        }
+                    }
+                    // One commit's worth per pass; the rest is peeked again next time round
+                    if (batchOps + group.size() > WriteCoalescer.MAX_BATCH) break;
+                    batchOps += group.size();
+                    committed.add(writes.write(group));
+                    lastId = e.id;
+                    drained++;
+
+                    if (sent) ok++;
+                    else if ("failed".equals(e.status)) failed++;
+                    if (sent && hasUser && e.docId != null) {
+                        BalanceLedger.get(context, e.userId).credit(e.docId, BalanceLedger.PAISE_PER_SMS);
+                        users.add(e.userId);
+                    }
+                }
+
+                // Only this pass's own writes decide whether its rows may go
+                writes.flush();
+                Tasks.await(Tasks.whenAll(committed), COMMIT_TIMEOUT_S, TimeUnit.SECONDS);
+                outbox.deleteThrough(lastId);
+                stats.record(ok, failed);
+                Log.d(TAG, "Drained " + drained + " results");
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Drain failed, will retry", e);
+            return Result.retry();
+        } finally {
+            for (String uid : users) BalanceLedger.get(context, uid).flush();
+            running.set(false);
+        }
+        // Rows that landed after the last peek, while an enqueue here would have been kept out
+        if (!isStopped() && outbox.size() > 0 && followUpQueued.compareAndSet(false, true)) {
+            schedule(context, ExistingWorkPolicy.APPEND_OR_REPLACE);
+        }
+        return Result.success();
+    }
+
+    private static boolean isDelivery(String status) {
+        return "delivered".equals(status) || "undelivered".equals(status)
+                || "delivery_timeout".equals(status);
+    }
+
+    /** One sent_logs document per task; manual sends without a task keep their row's log id. */
+    private static DocumentReference logRef(FirebaseFirestore db, OutboxDb.Entry e) {
+        return db.collection("sent_logs").document(e.docId != null ? e.docId : e.logId);
+    }
+}
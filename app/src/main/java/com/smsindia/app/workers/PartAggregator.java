@@ -0,0 +1,246 @@
+package com.smsindia.app.workers;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
+import android.telephony.SmsManager;
+import android.telephony.SmsMessage;
+import android.util.Log;
+
+import com.smsindia.app.data.CorrelationRegistry;
+import com.smsindia.app.data.MetricsRegistry;
+import com.smsindia.app.data.OutboxDb;
+import com.smsindia.app.sms.FailureClassifier;
+
+import java.util.List;
+
+/**
+ * Folds the per-part sent and delivery callbacks of one message into one outcome each.
+ *
+ * A message counts as sent only when every part's sent callback came back OK; the
+ * first failing part's code decides how it failed. Its delivery outcome is recorded
+ * separately, once every part was delivered, any part failed delivery, or the report
+ * never came. Each outcome is applied exactly once: the finalized flags live in the
+ * message's CorrelationRegistry entry and are persisted with it.
+ *
+ * Parts whose sent callback never comes count as failed after SENT_TIMEOUT_MS;
+ * sweep() applies both timeouts and should run now and then (SmsWorker, heartbeat).
+ *
+ * Does disk I/O; call off the main thread.
+ */
+public final class PartAggregator {
+
+    private static final String TAG = "PartAggregator";
+    private static final long SENT_TIMEOUT_MS = 2 * 60 * 1000;
+    /** Within CorrelationRegistry's retention, so the entry is still there to time out. */
+    private static final long DELIVERY_TIMEOUT_MS = 6 * 60 * 60 * 1000L;
+    private static final int SWEEP_BATCH = 200;
+
+    private static final char OK = 'S';
+    private static final char FAILED = 'F';
+    private static final char DELIVERED = 'D';
+    private static final char UNDELIVERED = 'U';
+
+    private static final MetricsRegistry.Histogram SEND_TO_SENT_MS = MetricsRegistry.histogram("send_to_sent_ms");
+    private static final MetricsRegistry.Histogram SENT_TO_DELIVERED_MS = MetricsRegistry.histogram("sent_to_delivered_ms");
+    private static final MetricsRegistry.Histogram SEND_TO_DELIVERED_MS = MetricsRegistry.histogram("send_to_delivered_ms");
+    private static final MetricsRegistry.Counter MESSAGES_SENT = MetricsRegistry.counter("messages_sent");
+    private static final MetricsRegistry.Counter MESSAGES_FAILED = MetricsRegistry.counter("messages_failed");
+    private static final MetricsRegistry.Counter SENT_TIMEOUTS = MetricsRegistry.counter("sent_timeouts");
+    private static final MetricsRegistry.Counter DELIVERED_COUNT = MetricsRegistry.counter("messages_delivered");
+    private static final MetricsRegistry.Counter UNDELIVERED_COUNT = MetricsRegistry.counter("messages_undelivered");
+    private static final MetricsRegistry.Counter DELIVERY_TIMEOUTS = MetricsRegistry.counter("delivery_timeouts");
+
+    private PartAggregator() {
+    }
+
+    /** The message-level sent outcome, handed back once so the caller can update the UI. */
+    public static class SentOutcome {
+        public final String docId;
+        public final String phone;
+        public final int resultCode;
+
+        SentOutcome(String docId, String phone, int resultCode) {
+            this.docId = docId;
+            this.phone = phone;
+            this.resultCode = resultCode;
+        }
+    }
+
+    /**
+     * Records one part's sent result. Returns the message outcome when this callback
+     * finalized it, null otherwise. Only the registry entry says whose send it was;
+     * callbacks with an unknown id (purged, or not ours) are dropped, never credited.
+     */
+    public static SentOutcome onSent(Context context, Intent intent, int resultCode) {
+        int corrId = intent.getIntExtra("corrId", 0);
+        int partIndex = intent.getIntExtra("partIndex", 0);
+        CorrelationRegistry registry = CorrelationRegistry.get(context);
+        CorrelationRegistry.Entry e = corrId != 0 ? registry.find(corrId) : null;
+        if (e == null) {
+            Log.w(TAG, "Sent callback for unknown correlation " + corrId + ", dropping");
+            return null;
+        }
+
+        boolean finalize;
+        synchronized (e) {
+            if (partIndex < 0 || partIndex >= e.partCount || e.is(CorrelationRegistry.Entry.SENT_FINAL)) {
+                return null;
+            }
+            boolean ok = resultCode == Activity.RESULT_OK;
+            e.sentParts[partIndex] = ok ? OK : FAILED;
+            if (!ok && e.sentCode == Activity.RESULT_OK) e.sentCode = resultCode;
+            finalize = !hasPending(e.sentParts);
+            if (finalize) {
+                e.flags |= CorrelationRegistry.Entry.SENT_FINAL;
+                e.sentDoneAt = System.currentTimeMillis();
+            }
+        }
+        if (!finalize) {
+            registry.save(e);
+            return null;
+        }
+        SEND_TO_SENT_MS.record(e.sentDoneAt - e.sentAt);
+        return finishSent(context, registry, e);
+    }
+
+    /**
+     * Records one part's delivery report, given as the report PDU and its format.
+     * Reports that say the carrier is still trying leave the part pending.
+     */
+    public static void onDelivered(Context context, int corrId, int partIndex, byte[] pdu, String format) {
+        if (corrId == 0 || pdu == null) return;
+        CorrelationRegistry registry = CorrelationRegistry.get(context);
+        CorrelationRegistry.Entry e = registry.find(corrId);
+        if (e == null) return;
+
+        char state = deliveryState(pdu, format);
+        boolean finalize;
+        synchronized (e) {
+            if (partIndex < 0 || partIndex >= e.partCount || e.is(CorrelationRegistry.Entry.DELIVERY_FINAL)) {
+                return;
+            }
+            e.deliveredParts[partIndex] = state;
+            finalize = state == UNDELIVERED || !hasPending(e.deliveredParts);
+            if (finalize) e.flags |= CorrelationRegistry.Entry.DELIVERY_FINAL;
+        }
+        if (finalize) {
+            appendDelivery(context, e, state == UNDELIVERED ? "undelivered" : "delivered");
+            closeIfDone(registry, e);
+        } else {
+            registry.save(e);
+        }
+    }
+
+    /** Applies the sent and delivery timeouts to messages still open. */
+    public static void sweep(Context context) {
+        CorrelationRegistry registry = CorrelationRegistry.get(context);
+        long now = System.currentTimeMillis();
+        List<Integer> ids = registry.openBefore(now - SENT_TIMEOUT_MS,
+                CorrelationRegistry.Entry.SENT_FINAL, SWEEP_BATCH);
+        ids.addAll(registry.openBefore(now - DELIVERY_TIMEOUT_MS,
+                CorrelationRegistry.Entry.DELIVERY_FINAL, SWEEP_BATCH));
+        int timedOut = 0;
+        for (int id : ids) {
+            CorrelationRegistry.Entry e = registry.find(id);
+            if (e == null) continue;
+            boolean sentDue;
+            boolean deliveryDue;
+            synchronized (e) {
+                sentDue = !e.is(CorrelationRegistry.Entry.SENT_FINAL);
+                deliveryDue = !e.is(CorrelationRegistry.Entry.DELIVERY_FINAL)
+                        && now - e.sentAt >= DELIVERY_TIMEOUT_MS;
+                if (sentDue) {
+                    for (int i = 0; i < e.partCount; i++) {
+                        if (e.sentParts[i] == CorrelationRegistry.PART_PENDING) e.sentParts[i] = FAILED;
+                    }
+                    if (e.sentCode == Activity.RESULT_OK) e.sentCode = SmsManager.RESULT_ERROR_GENERIC_FAILURE;
+                    e.flags |= CorrelationRegistry.Entry.SENT_FINAL;
+                }
+                if (deliveryDue) e.flags |= CorrelationRegistry.Entry.DELIVERY_FINAL;
+            }
+            if (sentDue) {
+                timedOut++;
+                SENT_TIMEOUTS.inc();
+                finishSent(context, registry, e);
+            } else if (deliveryDue) {
+                timedOut++;
+                appendDelivery(context, e, "delivery_timeout");
+                closeIfDone(registry, e);
+            }
+        }
+        if (timedOut > 0) Log.w(TAG, "Timed out " + timedOut + " messages");
+    }
+
+    private static SentOutcome finishSent(Context context, CorrelationRegistry registry,
+                                          CorrelationRegistry.Entry e) {
+        int code;
+        synchronized (e) {
+            code = e.sentCode;
+            // A message that did not fully go out gets no delivery report worth waiting for
+            if (code != Activity.RESULT_OK) e.flags |= CorrelationRegistry.Entry.DELIVERY_FINAL;
+        }
+        applySent(context, e.userId, e.docId, e.phone, e.subId, code);
+        closeIfDone(registry, e);
+        return new SentOutcome(e.docId, e.phone, code);
+    }
+
+    /** Rate feedback, lane counters and the local outcome, once per message. */
+    private static void applySent(Context context, String userId, String docId, String phone,
+                                  int subId, int resultCode) {
+        (resultCode == Activity.RESULT_OK ? MESSAGES_SENT : MESSAGES_FAILED).inc();
+        RateGovernor.forSubscription(context, subId).onResult(resultCode);
+        SimLane.onSentCallback(subId, resultCode == Activity.RESULT_OK);
+        FailureClassifier.Kind kind = FailureClassifier.classify(resultCode);
+        SendOutcome.record(context, userId, docId, phone, resultCode, kind, subId);
+    }
+
+    private static void appendDelivery(Context context, CorrelationRegistry.Entry e, String status) {
+        long now = System.currentTimeMillis();
+        long latency = now - e.sentAt;
+        Log.d(TAG, "Message " + e.docId + " " + status + " after " + latency + " ms");
+        if ("delivered".equals(status)) {
+            DELIVERED_COUNT.inc();
+            SEND_TO_DELIVERED_MS.record(latency);
+            if (e.sentDoneAt > 0) SENT_TO_DELIVERED_MS.record(now - e.sentDoneAt);
+        } else if ("undelivered".equals(status)) {
+            UNDELIVERED_COUNT.inc();
+        } else {
+            DELIVERY_TIMEOUTS.inc();
+        }
+        OutboxDb.get(context).appendDelivery(e.userId, e.docId, e.phone, status, latency, e.subId);
+        OutboxDrainWorker.enqueue(context);
+    }
+
+    private static void closeIfDone(CorrelationRegistry registry, CorrelationRegistry.Entry e) {
+        boolean done;
+        synchronized (e) {
+            done = e.is(CorrelationRegistry.Entry.SENT_FINAL) && e.is(CorrelationRegistry.Entry.DELIVERY_FINAL);
+        }
+        if (done) registry.close(e.id);
+        else registry.save(e);
+    }
+
+    private static boolean hasPending(char[] parts) {
+        for (char c : parts) {
+            if (c == CorrelationRegistry.PART_PENDING) return true;
+        }
+        return false;
+    }
+
+    /** DELIVERED, UNDELIVERED, or PART_PENDING while the carrier is still trying. */
+    private static char deliveryState(byte[] pdu, String format) {
+        SmsMessage report = SmsMessage.createFromPdu(pdu, format);
+        if (report == null) return CorrelationRegistry.PART_PENDING;
+        int status = report.getStatus();
+        if ("3gpp2".equals(format)) {
+            // CDMA: error class in the top byte; 0 none, 2 temporary, 3 permanent
+            int errorClass = (status >> 24) & 0x03;
+            if (errorClass == 0) return DELIVERED;
+            return errorClass == 2 ? CorrelationRegistry.PART_PENDING : UNDELIVERED;
+        }
+        // GSM TP-Status: 0x00-0x1F completed, 0x20-0x3F still trying, 0x40 and up failed
+        if (status < 0x20) return DELIVERED;
+        return status < 0x40 ? CorrelationRegistry.PART_PENDING : UNDELIVERED;
+    }
+}
@@ -0,0 +1,112 @@
+package com.smsindia.app.workers;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+
+/**
+ * Scales sending to the device's thermal and battery state, so a long run slows down
+ * on its own terms before the OS throttles or kills it.
+ *
+ * Full speed only while charging and cool. On battery, with power-save mode on, with
+ * a low battery or a warm device the send rate and in-flight window are scaled down;
+ * a severe thermal status or a nearly empty battery pauses sending altogether.
+ *
+ * Thresholds live in the SMSINDIA_CONFIG prefs: power_pause_battery, power_low_battery.
+ */
+public class PowerGovernor {
+
+    private static final int DEFAULT_PAUSE_BATTERY = 15;
+    private static final int DEFAULT_LOW_BATTERY = 30;
+    private static final float ON_BATTERY_SCALE = 0.75f;
+    private static final float LOW_SCALE = 0.5f;
+    private static final float LIGHT_THERMAL_SCALE = 0.75f;
+    private static final float MODERATE_THERMAL_SCALE = 0.4f;
+
+    private final Context context;
+    private final PowerManager power;
+    private final int pauseBattery;
+    private final int lowBattery;
+
+    public PowerGovernor(Context context) {
+        this.context = context.getApplicationContext();
+        this.power = context.getSystemService(PowerManager.class);
+        SharedPreferences cfg = context.getSharedPreferences("SMSINDIA_CONFIG", Context.MODE_PRIVATE);
+        this.pauseBattery = cfg.getInt("power_pause_battery", DEFAULT_PAUSE_BATTERY);
+        this.lowBattery = cfg.getInt("power_low_battery", DEFAULT_LOW_BATTERY);
+    }
+
+    /** What to do right now: a speed scale in (0, 1], or a pause, and why. */
+    public static class Decision {
+        public final float scale;
+        public final boolean paused;
+        public final String reason;
+
+        Decision(float scale, boolean paused, String reason) {
+            this.scale = scale;
+            this.paused = paused;
+            this.reason = reason;
+        }
+
+        /** Same action, whatever the reason; used to log only real changes. */
+        public boolean sameAs(Decision other) {
+            return other != null && paused == other.paused && scale == other.scale;
+        }
+    }
+
+    public Decision evaluate() {
+        int thermal = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && power != null
+                ? power.getCurrentThermalStatus() : 0;
+        // Sticky broadcast: no receiver is registered, this just reads the last state
+        Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        int level = battery != null ? battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1) : -1;
+        int scaleMax = battery != null ? battery.getIntExtra(BatteryManager.EXTRA_SCALE, 100) : 100;
+        int pct = level >= 0 && scaleMax > 0 ? level * 100 / scaleMax : 100;
+        int plugged = battery != null ? battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) : 0;
+        boolean charging = plugged != 0;
+        boolean powerSave = power != null && power.isPowerSaveMode();
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q
+                && thermal >= PowerManager.THERMAL_STATUS_SEVERE) {
+            return new Decision(0f, true, "thermal status " + thermal);
+        }
+        if (!charging && pct <= pauseBattery) {
+            return new Decision(0f, true, "battery " + pct + "%");
+        }
+
+        float scale = 1f;
+        StringBuilder reason = new StringBuilder();
+        if (!charging) {
+            scale = ON_BATTERY_SCALE;
+            reason.append("on battery ").append(pct).append('%');
+        }
+        if (!charging && pct <= lowBattery) {
+            scale = Math.min(scale, LOW_SCALE);
+            reason.append(" (low)");
+        }
+        if (powerSave) {
+            scale = Math.min(scale, LOW_SCALE);
+            append(reason, "power save");
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            if (thermal >= PowerManager.THERMAL_STATUS_MODERATE) {
+                scale = Math.min(scale, MODERATE_THERMAL_SCALE);
+                append(reason, "thermal moderate");
+            } else if (thermal == PowerManager.THERMAL_STATUS_LIGHT) {
+                scale = Math.min(scale, LIGHT_THERMAL_SCALE);
+                append(reason, "thermal light");
+            }
+        }
+        if (reason.length() == 0) reason.append("charging, cool");
+        return new Decision(scale, false, reason.toString());
+    }
+
+    private static void append(StringBuilder sb, String part) {
+        if (sb.length() > 0) sb.append(", ");
+        sb.append(part);
+    }
+}
@@ -0,0 +1,178 @@
+package com.smsindia.app.workers;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.telephony.PhoneStateListener;
+import android.telephony.ServiceState;
+import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyCallback;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Circuit breaker on a subscription's radio state.
+ *
+ * Opens while the radio reports no service (out of service, emergency only, powered
+ * off), and for a cooldown after a send fails with a no-service or device-fault
+ * code, which can arrive before the service state does. Closes again on its own
+ * once service is back and the cooldown has passed; SmsWorker waits on it instead
+ * of sending into a dead radio and failing the whole batch.
+ *
+ * Breakers are kept per subscription for the process. Their service-state listeners
+ * share one callback thread, and stopListening() (end of each SmsWorker run) drops the
+ * listeners and that thread; the next forSubscription() registers them again.
+ */
+public class RadioBreaker {
+
+    private static final String TAG = "RadioBreaker";
+    /** How long a no-service send result keeps the breaker open if the service state lags. */
+    public static final long NO_SERVICE_COOLDOWN_MS = 60 * 1000;
+    /** Device faults (no SMSC, FDN, SIM gone) rarely clear in seconds. */
+    public static final long DEVICE_FAULT_COOLDOWN_MS = 5 * 60 * 1000;
+    private static final Map<Integer, RadioBreaker> breakers = new HashMap<>();
+    /** Service-state callbacks of every breaker (API 31+); null while none listens. */
+    private static ExecutorService callbacks;
+
+    private final int subId;
+    private boolean inService = true;
+    private long openUntil;
+    // Undoes listen(); null while not listening. Guarded by the class lock
+    private Runnable unregister;
+
+    private RadioBreaker(int subId) {
+        this.subId = subId;
+    }
+
+    /** The breaker for a subscription, listening to its service state from first use. */
+    public static synchronized RadioBreaker forSubscription(Context context, int subId) {
+        RadioBreaker b = peek(subId);
+        if (b.unregister == null) b.listen(context.getApplicationContext());
+        return b;
+    }
+
+    /**
+     * The breaker for a subscription, without registering a listener. For callers that
+     * only trip() it, such as send-result receivers, which must not restart the listeners
+     * and callback thread that stopListening() shut down after a run.
+     */
+    public static synchronized RadioBreaker peek(int subId) {
+        RadioBreaker b = breakers.get(subId);
+        if (b == null) {
+            b = new RadioBreaker(subId);
+            breakers.put(subId, b);
+        }
+        return b;
+    }
+
+    /**
+     * Unregisters every breaker's listener and stops the shared callback thread. The
+     * breakers stay usable but only trip on send results until forSubscription() again.
+     */
+    public static synchronized void stopListening() {
+        for (RadioBreaker b : breakers.values()) {
+            if (b.unregister == null) continue;
+            try {
+                b.unregister.run();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Unregister failed for sub " + b.subId, e);
+            }
+            b.unregister = null;
+            b.onListenerGone();
+        }
+        if (callbacks != null) {
+            callbacks.shutdown();
+            callbacks = null;
+        }
+    }
+
+    public synchronized boolean isOpen() {
+        return !inService || System.currentTimeMillis() < openUntil;
+    }
+
+    /** Opens the breaker for at least cooldownMs, whatever the service state says. */
+    public synchronized void trip(long cooldownMs) {
+        openUntil = Math.max(openUntil, System.currentTimeMillis() + cooldownMs);
+        Log.w(TAG, "Sub " + subId + " tripped for " + cooldownMs + " ms");
+    }
+
+    /** Blocks until the breaker closes or maxWaitMs passes. Returns true if it closed. */
+    public synchronized boolean awaitClosed(long maxWaitMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + maxWaitMs;
+        while (isOpen()) {
+            long now = System.currentTimeMillis();
+            if (now >= deadline) return false;
+            long wait = deadline - now;
+            if (inService) wait = Math.min(wait, openUntil - now);
+            wait(Math.max(1, wait));
+        }
+        return true;
+    }
+
+    /** Without a listener the last state may go stale; do not stay open on it. */
+    private synchronized void onListenerGone() {
+        inService = true;
+        notifyAll();
+    }
+
+    private synchronized void onServiceState(ServiceState state) {
+        int s = state.getState();
+        boolean was = inService;
+        inService = s == ServiceState.STATE_IN_SERVICE;
+        if (was != inService) Log.d(TAG, "Sub " + subId + (inService ? " back in service" : " lost service: " + s));
+        notifyAll();
+    }
+
+    private void listen(Context context) {
+        TelephonyManager tm = context.getSystemService(TelephonyManager.class);
+        if (tm == null) return;
+        if (subId != RateGovernor.DEFAULT_SUBSCRIPTION && SubscriptionManager.isValidSubscriptionId(subId)) {
+            tm = tm.createForSubscriptionId(subId);
+        }
+        TelephonyManager target = tm;
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+                if (callbacks == null) callbacks = Executors.newSingleThreadExecutor();
+                StateCallback callback = new StateCallback();
+                target.registerTelephonyCallback(callbacks, callback);
+                unregister = () -> target.unregisterTelephonyCallback(callback);
+            } else {
+                // PhoneStateListener delivers on the looper of the thread it is created on
+                Handler main = new Handler(Looper.getMainLooper());
+                PhoneStateListener[] listener = new PhoneStateListener[1];
+                main.post(() -> {
+                    try {
+                        listener[0] = new PhoneStateListener() {
+                            @Override
+                            public void onServiceStateChanged(ServiceState serviceState) {
+                                onServiceState(serviceState);
+                            }
+                        };
+                        target.listen(listener[0], PhoneStateListener.LISTEN_SERVICE_STATE);
+                    } catch (SecurityException e) {
+                        Log.w(TAG, "Cannot watch service state; breaker trips on send results only", e);
+                    }
+                });
+                // Posted behind the registration, so it always finds the listener set
+                unregister = () -> main.post(() -> {
+                    if (listener[0] != null) target.listen(listener[0], PhoneStateListener.LISTEN_NONE);
+                });
+            }
+        } catch (SecurityException e) {
+            Log.w(TAG, "Cannot watch service state; breaker trips on send results only", e);
+        }
+    }
+
+    private class StateCallback extends TelephonyCallback implements TelephonyCallback.ServiceStateListener {
+        @Override
+        public void onServiceStateChanged(ServiceState serviceState) {
+            onServiceState(serviceState);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.smsindia.app.workers;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.provider.Settings;
+import android.telephony.SmsManager;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Adaptive token bucket that paces sends for one SIM subscription.
+ *
+ * Tokens refill at the current rate and are capped at the configured burst.
+ * The rate climbs slowly while sent callbacks come back RESULT_OK and is cut
+ * on carrier or generic failures (AIMD). Independently of the bucket, a sliding
+ * window mirrors Android's outgoing SMS quota (sms_outgoing_check_max_count per
+ * sms_outgoing_check_interval_ms) so the system confirmation dialog never fires.
+ * That quota is counted per app, not per SIM, so every governor shares one window.
+ *
+ * PowerGovernor can scale the whole rate down on top of that, via setPowerScale().
+ *
+ * Config lives in the SMSINDIA_CONFIG prefs: rate_burst, rate_per_min, rate_max_per_min.
+ */
+public class RateGovernor {
+
+    public static final int DEFAULT_SUBSCRIPTION = -1;
+
+    private static final String TAG = "RateGovernor";
+
+    private static final int DEFAULT_BURST = 5;
+    private static final float DEFAULT_RATE_PER_MIN = 50f;
+    private static final float DEFAULT_MAX_RATE_PER_MIN = 120f;
+    private static final float MIN_RATE_PER_MIN = 6f;
+    /** AOSP SmsUsageMonitor defaults, used when the global settings are not set. */
+    private static final int DEFAULT_QUOTA_COUNT = 30;
+    private static final long DEFAULT_QUOTA_WINDOW_MS = 60_000L;
+    private static final float INCREASE_PER_OK = 1f;
+    private static final float DECREASE_ON_LIMIT = 0.5f;
+    private static final float DECREASE_ON_FAILURE = 0.8f;
+    private static final long LIMIT_COOLDOWN_MS = 60 * 1000;
+
+    private static final Map<Integer, RateGovernor> governors = new HashMap<>();
+    private static QuotaWindow appQuota;
+
+    private final int burst;
+    private final float maxRatePerMin;
+    private final QuotaWindow quota;
+
+    private float ratePerMin;
+    private float powerScale = 1f;
+    private double tokens;
+    private long lastRefill;
+    private long cooldownUntil;
+
+    public RateGovernor(int burst, float ratePerMin, float maxRatePerMin, QuotaWindow quota) {
+        this.burst = Math.max(1, burst);
+        this.ratePerMin = ratePerMin;
+        this.maxRatePerMin = Math.max(ratePerMin, maxRatePerMin);
+        this.quota = quota;
+        this.tokens = this.burst;
+        this.lastRefill = System.currentTimeMillis();
+    }
+
+    /** Returns the shared governor for a subscription, creating it from config on first use. */
+    public static synchronized RateGovernor forSubscription(Context context, int subId) {
+        RateGovernor g = governors.get(subId);
+        if (g == null) {
+            SharedPreferences cfg = context.getSharedPreferences("SMSINDIA_CONFIG", Context.MODE_PRIVATE);
+            g = new RateGovernor(
+                    cfg.getInt("rate_burst", DEFAULT_BURST),
+                    cfg.getFloat("rate_per_min", DEFAULT_RATE_PER_MIN),
+                    cfg.getFloat("rate_max_per_min", DEFAULT_MAX_RATE_PER_MIN),
+                    appQuota(context));
+            governors.put(subId, g);
+        }
+        return g;
+    }
+
+    /** The app-wide quota window shared by every governor; Android counts the quota per app. */
+    public static synchronized QuotaWindow appQuota(Context context) {
+        if (appQuota == null) {
+            int count = DEFAULT_QUOTA_COUNT;
+            long windowMs = DEFAULT_QUOTA_WINDOW_MS;
+            try {
+                count = Settings.Global.getInt(context.getContentResolver(),
+                        "sms_outgoing_check_max_count", DEFAULT_QUOTA_COUNT);
+                windowMs = Settings.Global.getLong(context.getContentResolver(),
+                        "sms_outgoing_check_interval_ms", DEFAULT_QUOTA_WINDOW_MS);
+            } catch (SecurityException | IllegalArgumentException e) {
+                // Hidden settings; some builds refuse to read them
+                Log.w(TAG, "SMS quota settings unreadable, using defaults", e);
+            }
+            appQuota = new QuotaWindow(count, windowMs,
+                    context.getSharedPreferences("SMSINDIA_QUOTA", Context.MODE_PRIVATE));
+        }
+        return appQuota;
+    }
+
+    /** Blocks until a send is permitted, then consumes one token and one quota slot. */
+    public void acquire() throws InterruptedException {
+        while (true) {
+            long wait;
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                wait = delayMs(now);
+                if (wait == 0 && quota.tryConsume(now)) {
+                    tokens -= 1;
+                    return;
+                }
+            }
+            Thread.sleep(Math.max(1, Math.min(wait, 1000)));
+        }
+    }
+
+    /** Milliseconds until the next send would be permitted; 0 when one is available now. */
+    public synchronized long delayMs(long now) {
+        refill(now);
+        long wait = 0;
+        if (now < cooldownUntil) wait = cooldownUntil - now;
+        if (tokens < 1) {
+            double msPerToken = 60000.0 / effectiveRate();
+            wait = Math.max(wait, (long) Math.ceil((1 - tokens) * msPerToken));
+        }
+        return Math.max(wait, quota.delayMs(now));
+    }
+
+    /** Feeds a sent-callback result code back into the rate. */
+    public synchronized void onResult(int resultCode) {
+        if (resultCode == Activity.RESULT_OK) {
+            ratePerMin = Math.min(maxRatePerMin, ratePerMin + INCREASE_PER_OK);
+        } else if (resultCode == SmsManager.RESULT_ERROR_LIMIT_EXCEEDED) {
+            ratePerMin = Math.max(MIN_RATE_PER_MIN, ratePerMin * DECREASE_ON_LIMIT);
+            cooldownUntil = System.currentTimeMillis() + LIMIT_COOLDOWN_MS;
+            tokens = Math.min(tokens, 0);
+        } else {
+            ratePerMin = Math.max(MIN_RATE_PER_MIN, ratePerMin * DECREASE_ON_FAILURE);
+        }
+    }
+
+    public synchronized float getRatePerMin() {
+        return ratePerMin;
+    }
+
+    /** Scales the refill rate by a factor in (0, 1] without touching the learned rate. */
+    public synchronized void setPowerScale(float scale) {
+        refill(System.currentTimeMillis());
+        powerScale = Math.max(0.05f, Math.min(1f, scale));
+    }
+
+    private float effectiveRate() {
+        return ratePerMin * powerScale;
+    }
+
+    private void refill(long now) {
+        long elapsed = now - lastRefill;
+        if (elapsed <= 0) return;
+        tokens = Math.min(burst, tokens + elapsed * effectiveRate() / 60000.0);
+        lastRefill = now;
+    }
+
+    /**
+     * Sliding window over the app's recent sends, sized to Android's SMS quota.
+     * Android counts the quota across process restarts, so with a store the send times
+     * are persisted and a new process (the next worker run, a heartbeat) resumes them.
+     */
+    public static class QuotaWindow {
+        private static final String KEY_SENDS = "sends";
+
+        private final long[] ring;
+        private final long windowMs;
+        private final SharedPreferences store;
+        private int head;
+
+        public QuotaWindow(int maxCount, long windowMs) {
+            this(maxCount, windowMs, null);
+        }
+
+        public QuotaWindow(int maxCount, long windowMs, SharedPreferences store) {
+            this.ring = new long[Math.max(1, maxCount)];
+            this.windowMs = windowMs;
+            this.store = store;
+            if (store != null) load(System.currentTimeMillis());
+        }
+
+        public synchronized long delayMs(long now) {
+            // Oldest entry in the ring is the send that has to age out of the window
+            long oldest = ring[head];
+            if (oldest == 0 || now - oldest >= windowMs) return 0;
+            return windowMs - (now - oldest);
+        }
+
+        /** Sends still allowed in the current window, as seen by this process. */
+        public synchronized int remaining(long now) {
+            int used = 0;
+            for (long t : ring) {
+                if (t != 0 && now - t < windowMs) used++;
+            }
+            return ring.length - used;
+        }
+
+        public synchronized boolean tryConsume(long now) {
+            if (delayMs(now) > 0) return false;
+            ring[head] = now;
+            head = (head + 1) % ring.length;
+            if (store != null) save(now);
+            return true;
+        }
+
+        /** Oldest first, so the ring's head ends up on the oldest send still in the window. */
+        private void load(long now) {
+            String saved = store.getString(KEY_SENDS, "");
+            if (saved.isEmpty()) return;
+            String[] parts = saved.split(",");
+            int from = Math.max(0, parts.length - ring.length);
+            int n = 0;
+            for (int i = from; i < parts.length; i++) {
+                try {
+                    long t = Long.parseLong(parts[i]);
+                    if (now - t < windowMs) ring[n++] = t;
+                } catch (NumberFormatException ignored) {
+                    // A corrupt entry only loses that one send
+                }
+            }
+            head = n % ring.length;
+        }
+
+        private void save(long now) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < ring.length; i++) {
+                long t = ring[(head + i) % ring.length];
+                if (t == 0 || now - t >= windowMs) continue;
+                if (sb.length() > 0) sb.append(',');
+                sb.append(t);
+            }
+            store.edit().putString(KEY_SENDS, sb.toString()).apply();
+        }
+    }
+}
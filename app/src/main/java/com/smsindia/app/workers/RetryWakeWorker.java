@@ -0,0 +1,53 @@
+package com.smsindia.app.workers;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.smsindia.app.data.OutboxDb;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wakes up when the soonest queued retry is due and appends a retry-only SmsWorker
+ * run to the send chain. Kept separate so a waiting retry never holds up the chain.
+ */
+public class RetryWakeWorker extends Worker {
+
+    private static final String UNIQUE_NAME = "sms_retry_wake";
+    /** Floor on the delay, so a retry that keeps failing to load cannot spin the chain. */
+    private static final long MIN_DELAY_MS = 30 * 1000;
+
+    public RetryWakeWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+    }
+
+    /** (Re)schedules the wake-up for the soonest queued retry; does nothing when none is queued. */
+    public static void schedule(Context context) {
+        long nextAt = OutboxDb.get(context).nextRetryAt();
+        if (nextAt == 0) return;
+        long delay = Math.max(MIN_DELAY_MS, nextAt - System.currentTimeMillis());
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(RetryWakeWorker.class)
+                .setInitialDelay(delay, TimeUnit.MILLISECONDS)
+                .build();
+        WorkManager.getInstance(context)
+                .enqueueUniqueWork(UNIQUE_NAME, ExistingWorkPolicy.REPLACE, request);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        Data input = new Data.Builder().putBoolean(SmsWorker.KEY_RETRY_ONLY, true).build();
+        WorkManager.getInstance(getApplicationContext())
+                .beginUniqueWork(SmsWorker.UNIQUE_WORK, ExistingWorkPolicy.APPEND_OR_REPLACE,
+                        SmsWorker.buildRequest(input))
+                .enqueue();
+        return Result.success();
+    }
+}
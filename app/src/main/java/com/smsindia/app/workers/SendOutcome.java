@@ -0,0 +1,49 @@
+package com.smsindia.app.workers;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.smsindia.app.data.OutboxDb;
+import com.smsindia.app.sms.FailureClassifier;
+
+/**
+ * Applies the outcome of one send locally: final results go to the outbox for the
+ * drain, retryable ones to the retry queue with exponential backoff. A task is only
+ * deleted from sms_tasks once it was sent, failed permanently, or ran out of attempts.
+ *
+ * Does disk I/O; call off the main thread.
+ */
+public final class SendOutcome {
+
+    private static final String TAG = "SendOutcome";
+
+    private SendOutcome() {
+    }
+
+    /** Returns the status recorded: "sent", "failed" or "retry". */
+    public static String record(Context context, String userId, String docId, String phone,
+                                int resultCode, FailureClassifier.Kind kind, int subId) {
+        OutboxDb outbox = OutboxDb.get(context);
+        String status;
+        if (kind == FailureClassifier.Kind.OK) {
+            status = "sent";
+        } else if (kind == FailureClassifier.Kind.PERMANENT || docId == null) {
+            status = "failed";
+        } else {
+            int attempts = outbox.retryAttempts(docId) + 1;
+            if (attempts < FailureClassifier.MAX_ATTEMPTS) {
+                long delay = FailureClassifier.retryDelayMs(attempts);
+                outbox.scheduleRetry(docId, attempts, System.currentTimeMillis() + delay);
+                RetryWakeWorker.schedule(context);
+                Log.d(TAG, "Retry " + attempts + " of " + docId + " in " + delay + " ms (" + kind + ")");
+                return "retry";
+            }
+            Log.w(TAG, "Giving up on " + docId + " after " + attempts + " attempts");
+            status = "failed";
+        }
+        if (docId != null) outbox.removeRetry(docId);
+        outbox.append(userId, docId, phone, status, resultCode, subId);
+        OutboxDrainWorker.enqueue(context);
+        return status;
+    }
+}
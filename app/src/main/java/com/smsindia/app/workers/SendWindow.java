@@ -0,0 +1,112 @@
+package com.smsindia.app.workers;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounds the number of SMS handed to the radio whose sent callback has not come back yet.
+ *
+ * SmsWorker acquires a slot before each send and tags the sent PendingIntent with the
+ * slot id; SmsDeliveryReceiver releases it when the callback arrives. Slots whose
+ * callback never arrives are reclaimed after the timeout. A full window blocks the
+ * worker, which in turn stops it pulling more tasks from the stream. The usable part
+ * of the window can be scaled down (see PowerGovernor) without reallocating it.
+ */
+public class SendWindow {
+
+    private static final String TAG = "SendWindow";
+    private static final AtomicInteger nextSlotId = new AtomicInteger(1);
+    private static volatile SendWindow active;
+
+    private final int capacity;
+    private int limit;
+    private final long timeoutMs;
+    private final Map<Integer, Long> inFlight = new HashMap<>();
+    private int timeouts;
+
+    public SendWindow(int capacity, long timeoutMs) {
+        this.capacity = Math.max(1, capacity);
+        this.limit = this.capacity;
+        this.timeoutMs = timeoutMs;
+    }
+
+    /** Makes this window the one that sent callbacks are routed to. */
+    public static void setActive(SendWindow window) {
+        active = window;
+    }
+
+    /** Called from the receiver; ignores slots of a window that has since been replaced. */
+    public static void onSentCallback(int slotId) {
+        SendWindow w = active;
+        if (w != null && slotId > 0) w.release(slotId);
+    }
+
+    /** Blocks until a slot is free and returns its id. */
+    public synchronized int acquire() throws InterruptedException {
+        while (true) {
+            expire(System.currentTimeMillis());
+            if (inFlight.size() < limit) {
+                int id = nextSlotId.getAndIncrement();
+                inFlight.put(id, System.currentTimeMillis());
+                return id;
+            }
+            wait(Math.max(1, oldestDeadline() - System.currentTimeMillis()));
+        }
+    }
+
+    /** Uses only a fraction of the capacity, at least one slot. Sends already in flight stay. */
+    public synchronized void setScale(float scale) {
+        int next = Math.max(1, Math.min(capacity, Math.round(capacity * scale)));
+        if (next > limit) notifyAll();
+        limit = next;
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    public synchronized void release(int slotId) {
+        if (inFlight.remove(slotId) != null) notifyAll();
+    }
+
+    /** Waits up to maxWaitMs for every outstanding callback, e.g. before the worker finishes. */
+    public synchronized void drain(long maxWaitMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + maxWaitMs;
+        while (!inFlight.isEmpty()) {
+            long now = System.currentTimeMillis();
+            expire(now);
+            if (inFlight.isEmpty() || now >= deadline) break;
+            wait(Math.max(1, Math.min(deadline, oldestDeadline()) - now));
+        }
+    }
+
+    public synchronized int inFlightCount() {
+        return inFlight.size();
+    }
+
+    public synchronized int timeoutCount() {
+        return timeouts;
+    }
+
+    private void expire(long now) {
+        Iterator<Map.Entry<Integer, Long>> it = inFlight.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Long> e = it.next();
+            if (now - e.getValue() >= timeoutMs) {
+                Log.w(TAG, "Sent callback timed out for slot " + e.getKey());
+                it.remove();
+                timeouts++;
+            }
+        }
+    }
+
+    private long oldestDeadline() {
+        long oldest = Long.MAX_VALUE;
+        for (long started : inFlight.values()) oldest = Math.min(oldest, started);
+        return oldest == Long.MAX_VALUE ? System.currentTimeMillis() + timeoutMs : oldest + timeoutMs;
+    }
+}
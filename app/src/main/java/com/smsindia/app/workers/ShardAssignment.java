@@ -0,0 +1,95 @@
+package com.smsindia.app.workers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Which sms_tasks shards this device reads, so devices stop scanning from the same
+ * head document.
+ *
+ * Tasks carry an integer shard field in [0, shard_count). The device's first shard is
+ * a jump consistent hash of its device id, so changing shard_count moves as few
+ * devices as possible; it owns shards_per_device consecutive shards from there.
+ * With shard_overflow on, a device whose own shards are empty may take tasks from
+ * the shards that follow its range.
+ *
+ * Sharding is off while shard_count (SMSINDIA_CONFIG) is 0. When on, every task
+ * must have a shard field: Firestore cannot match documents missing it.
+ */
+public final class ShardAssignment {
+
+    /** Firestore's limit on values in a whereIn filter. */
+    private static final int MAX_IN_VALUES = 30;
+
+    private final int shardCount;
+    private final int first;
+    private final int width;
+    private final boolean overflow;
+
+    ShardAssignment(String deviceId, int shardCount, int perDevice, boolean overflow) {
+        this.shardCount = Math.max(0, shardCount);
+        this.first = this.shardCount > 0 ? jumpHash(fnv64(deviceId), this.shardCount) : 0;
+        this.width = Math.max(1, Math.min(Math.min(perDevice, this.shardCount), MAX_IN_VALUES));
+        this.overflow = overflow;
+    }
+
+    public static ShardAssignment forDevice(Context context) {
+        String deviceId = context.getSharedPreferences("SMSINDIA_USER", Context.MODE_PRIVATE)
+                .getString("deviceId", "");
+        SharedPreferences cfg = context.getSharedPreferences("SMSINDIA_CONFIG", Context.MODE_PRIVATE);
+        return new ShardAssignment(deviceId,
+                cfg.getInt("shard_count", 0),
+                cfg.getInt("shards_per_device", 1),
+                cfg.getBoolean("shard_overflow", true));
+    }
+
+    public boolean isEnabled() {
+        return shardCount > 0;
+    }
+
+    public boolean allowsOverflow() {
+        return isEnabled() && overflow && shardCount > width;
+    }
+
+    /** The shards this device owns, or null when sharding is off (read everything). */
+    public List<Integer> ownShards() {
+        return isEnabled() ? ring(first, width) : null;
+    }
+
+    /** Shards after this device's range to steal from, nearest first, or null when overflow is off. */
+    public List<Integer> overflowShards() {
+        if (!allowsOverflow()) return null;
+        return ring(first + width, Math.min(shardCount - width, MAX_IN_VALUES));
+    }
+
+    private List<Integer> ring(int start, int count) {
+        List<Integer> shards = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) shards.add((start + i) % shardCount);
+        return Collections.unmodifiableList(shards);
+    }
+
+    /** Lamping and Veach's jump consistent hash: a bucket in [0, buckets). */
+    static int jumpHash(long key, int buckets) {
+        long b = -1;
+        long j = 0;
+        while (j < buckets) {
+            b = j;
+            key = key * 2862933555777941757L + 1;
+            j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) b;
+    }
+
+    private static long fnv64(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+}
@@ -0,0 +1,166 @@
+package com.smsindia.app.workers;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.telephony.SmsManager;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
+import android.util.Log;
+
+import androidx.core.content.ContextCompat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One dispatch lane per active SIM subscription, each with its own SmsManager,
+ * RateGovernor and counters. Lanes are picked by load so a dual-SIM device keeps
+ * both radios busy.
+ *
+ * Falls back to a single lane on the default SmsManager when READ_PHONE_STATE is
+ * missing, when only one SIM is active, or when multi_sim is off in SMSINDIA_CONFIG.
+ */
+public class SimLane {
+
+    private static final String TAG = "SimLane";
+    private static final Map<Integer, SimLane> lanes = new HashMap<>();
+
+    public final int subId;
+    public final String label;
+    public final SmsManager sms;
+    public final RateGovernor governor;
+    public final RadioBreaker breaker;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger sent = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private SimLane(int subId, String label, SmsManager sms, RateGovernor governor, RadioBreaker breaker) {
+        this.subId = subId;
+        this.label = label;
+        this.sms = sms;
+        this.governor = governor;
+        this.breaker = breaker;
+    }
+
+    /** Lists the lanes for the currently active subscriptions. Never returns an empty list. */
+    public static synchronized List<SimLane> discover(Context context) {
+        List<SimLane> result = new ArrayList<>();
+        boolean multiSim = context.getSharedPreferences("SMSINDIA_CONFIG", Context.MODE_PRIVATE)
+                .getBoolean("multi_sim", true);
+
+        if (multiSim && ContextCompat.checkSelfPermission(context, Manifest.permission.READ_PHONE_STATE)
+                == PackageManager.PERMISSION_GRANTED) {
+            SubscriptionManager sm = context.getSystemService(SubscriptionManager.class);
+            List<SubscriptionInfo> subs = null;
+            try {
+                subs = sm != null ? sm.getActiveSubscriptionInfoList() : null;
+            } catch (SecurityException e) {
+                Log.w(TAG, "Cannot list subscriptions", e);
+            }
+            if (subs != null && subs.size() > 1) {
+                for (SubscriptionInfo info : subs) {
+                    int subId = info.getSubscriptionId();
+                    result.add(lane(context, subId, "SIM" + (info.getSimSlotIndex() + 1),
+                            SmsManager.getSmsManagerForSubscriptionId(subId)));
+                }
+            }
+        }
+        if (result.isEmpty()) {
+            result.add(lane(context, RateGovernor.DEFAULT_SUBSCRIPTION, "SIM", SmsManager.getDefault()));
+        }
+        return result;
+    }
+
+    /**
+     * Picks the lane that can send soonest, breaking ties by fewest messages in flight.
+     * Lanes whose radio breaker is open are only picked when every lane's is.
+     */
+    public static SimLane pick(List<SimLane> candidates) {
+        long now = System.currentTimeMillis();
+        SimLane best = null;
+        boolean bestOpen = true;
+        long bestDelay = Long.MAX_VALUE;
+        for (SimLane lane : candidates) {
+            boolean open = lane.breaker.isOpen();
+            if (open && !bestOpen) continue;
+            long delay = lane.governor.delayMs(now);
+            if (best == null || (bestOpen && !open) || delay < bestDelay
+                    || (delay == bestDelay && lane.inFlight.get() < best.inFlight.get())) {
+                best = lane;
+                bestOpen = open;
+                bestDelay = delay;
+            }
+        }
+        return best;
+    }
+
+    /** Routes a sent callback to the lane that sent it, if that lane is still known. */
+    public static void onSentCallback(int subId, boolean ok) {
+        SimLane lane;
+        synchronized (SimLane.class) {
+            lane = lanes.get(subId);
+        }
+        if (lane == null) return;
+        lane.inFlight.decrementAndGet();
+        if (ok) lane.sent.incrementAndGet();
+        else lane.failed.incrementAndGet();
+    }
+
+    public void onDispatched() {
+        inFlight.incrementAndGet();
+    }
+
+    public void onDispatchFailed() {
+        failed.incrementAndGet();
+    }
+
+    public int getSent() {
+        return sent.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    /** True when at least one lane's radio breaker is closed. */
+    public static boolean anyClosed(List<SimLane> lanes) {
+        for (SimLane lane : lanes) {
+            if (!lane.breaker.isOpen()) return true;
+        }
+        return false;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /** e.g. "SIM1 12✓ 1✗ · SIM2 10✓ 0✗" for the worker notification and progress. */
+    public static String summary(List<SimLane> lanes) {
+        StringBuilder sb = new StringBuilder();
+        for (SimLane lane : lanes) {
+            if (sb.length() > 0) sb.append(" · ");
+            sb.append(lane.label).append(' ')
+                    .append(lane.getSent()).append("✓ ")
+                    .append(lane.getFailed()).append('✗');
+        }
+        return sb.toString();
+    }
+
+    private static SimLane lane(Context context, int subId, String label, SmsManager sms) {
+        SimLane lane = lanes.get(subId);
+        if (lane == null) {
+            lane = new SimLane(subId, label, sms, RateGovernor.forSubscription(context, subId),
+                    RadioBreaker.forSubscription(context, subId));
+            lanes.put(subId, lane);
+        } else {
+            // Same breaker; listens again if a finished run stopped it
+            RadioBreaker.forSubscription(context, subId);
+        }
+        return lane;
+    }
+}
@@ -7,37 +7,124 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.pm.ServiceInfo;
+import android.os.SystemClock;
 import android.telephony.SmsManager;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.core.app.NotificationCompat;
 import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
 import androidx.work.ForegroundInfo;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.OutOfQuotaPolicy;
+import androidx.work.WorkManager;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 
-import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.android.gms.tasks.Tasks;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.firebase.firestore.FirebaseFirestore;
 import com.smsindia.app.MainActivity;
 import com.smsindia.app.R;
+import com.smsindia.app.data.BalanceLedger;
+import com.smsindia.app.data.CorrelationRegistry;
+import com.smsindia.app.data.MetricsRegistry;
+import com.smsindia.app.data.OutboxDb;
+import com.smsindia.app.data.SentIdFilter;
+import com.smsindia.app.data.TemplateCache;
+import com.smsindia.app.data.WorkerCheckpoint;
+import com.smsindia.app.data.WriteCoalescer;
+import com.smsindia.app.receivers.SmsDeliveryReceiver;
+import com.smsindia.app.sms.FailureClassifier;
+import com.smsindia.app.sms.PhoneCanonicalizer;
+import com.smsindia.app.sms.SegmentPlanner;
+import com.smsindia.app.sms.SmsTask;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class SmsWorker extends Worker {
 
     private static final String CHANNEL_ID = "sms_worker_channel";
     private static final String TAG = "SmsWorker";
+    public static final String UNIQUE_WORK = "sms_worker";
+    /** Input: stop once this many tasks were sent in the run (0 = until the queue is empty). */
+    public static final String KEY_MAX_COUNT = "maxCount";
+    /** Input: send only these task ids (a push hint) instead of walking the collection. */
+    public static final String KEY_TASK_IDS = "taskIds";
+    /** Input: walk only tasks of this shard (a push hint). */
+    public static final String KEY_SHARD = "shard";
+    /** Input: only send queued retries that are due (see RetryWakeWorker). */
+    public static final String KEY_RETRY_ONLY = "retryOnly";
+    private static final int PAGE_SIZE = 100;
+    private static final int CHUNK_PAGES = 5;
+    private static final int URGENT_PAGES = 1;
+    private static final int URGENT_SAMPLES = 512;
+    private static final int CLAIM_BATCH = 25;
+    private static final long CLAIM_TIMEOUT_MS = 10000;
+    private static final int DEFAULT_WINDOW = 4;
+    private static final long SENT_TIMEOUT_MS = 60000;
+    private static final int RETRY_BATCH = 100;
+    /** A re-sent retry is not due again until its result had time to arrive. */
+    private static final long RETRY_IN_FLIGHT_MS = 2 * SENT_TIMEOUT_MS;
+    /** How long a run waits for any SIM to get service back before handing over to WorkManager. */
+    private static final long RADIO_WAIT_MS = 5 * 60 * 1000;
+    private static final long RADIO_POLL_MS = 5000;
+    private static final long POWER_CHECK_MS = 30 * 1000;
+    /** How long a run sits out a power pause before handing over to WorkManager. */
+    private static final long POWER_WAIT_MS = 10 * 60 * 1000;
+
+    private static final MetricsRegistry.Histogram CLAIM_MS = MetricsRegistry.histogram("claim_ms");
+    private static final MetricsRegistry.Histogram CLAIM_TO_SEND_MS = MetricsRegistry.histogram("claim_to_send_ms");
+    private static final MetricsRegistry.Histogram WINDOW_WAIT_MS = MetricsRegistry.histogram("window_wait_ms");
+    private static final MetricsRegistry.Counter DISPATCHED = MetricsRegistry.counter("sms_dispatched");
+    private static final MetricsRegistry.Counter DISPATCH_ERRORS = MetricsRegistry.counter("sms_dispatch_errors");
+    private static final MetricsRegistry.Counter EXPIRED = MetricsRegistry.counter("tasks_expired");
+    private static final MetricsRegistry.Counter RETRIES_SENT = MetricsRegistry.counter("retries_sent");
+    private static final MetricsRegistry.Counter HALTS = MetricsRegistry.counter("worker_halts");
     private final Context context;
     private final FirebaseFirestore db;
     private final String uid;
+    private final TemplateCache templates;
+    private boolean substituteGsm7;
+    private int maxCount;
+
+    // Per-run state shared by doWork() and processPage()
+    private WorkerCheckpoint checkpoint;
+    private SentIdFilter sentIds;
+    private TaskLease lease;
+    private List<SimLane> lanes;
+    private SendWindow window;
+    private int sent;
+    private int claimedTotal;
+    private int expired;
+    private int retried;
+    // Set when no radio or the power state stopped the run; WorkManager backs off and retries
+    private boolean halted;
+    // Set at the first slice that was not fully handled; the cursor stays before it
+    private boolean cursorHeld;
+    private PowerGovernor power;
+    private PowerGovernor.Decision powerDecision;
+    private long powerCheckedAt;
+    private final long[] urgentLatencyMs = new long[URGENT_SAMPLES];
+    private int urgentSamples;
 
     public SmsWorker(@NonNull Context context, @NonNull WorkerParameters params) {
         super(context, params);
         this.context = context;
         this.db = FirebaseFirestore.getInstance();
+        this.templates = TemplateCache.get(context);
         SharedPreferences prefs = context.getSharedPreferences("SMSINDIA_USER", Context.MODE_PRIVATE);
         this.uid = prefs.getString("mobile", "");
     }
@@ -52,120 +139,509 @@ public class SmsWorker extends Worker {
         }
 
         setForegroundAsync(createForegroundInfo("Loading tasks..."));
+        MetricsRegistry.get().startSnapshots(context);
+        maxCount = getInputData().getInt(KEY_MAX_COUNT, 0);
+
+        String[] taskIds = getInputData().getStringArray(KEY_TASK_IDS);
+        int shard = getInputData().getInt(KEY_SHARD, -1);
+        boolean retryOnly = getInputData().getBoolean(KEY_RETRY_ONLY, false);
+        // Hinted runs keep their own checkpoint so they never move the main run's cursor
+        checkpoint = new WorkerCheckpoint(context, retryOnly ? "retry"
+                : taskIds != null ? "ids" : shard >= 0 ? "shard_" + shard : null);
+        sentIds = SentIdFilter.get(context);
+        ShardAssignment assignment = ShardAssignment.forDevice(context);
+        boolean mainRun = taskIds == null && shard < 0 && !retryOnly;
+        boolean overflow = mainRun && checkpoint.isOverflow() && assignment.allowsOverflow();
+        List<Integer> shards = shard >= 0 ? Collections.singletonList(shard)
+                : overflow ? assignment.overflowShards() : assignment.ownShards();
+        TaskStream stream = taskIds != null
+                ? TaskStream.forIds(db, Arrays.asList(taskIds))
+                : new TaskStream(db, PAGE_SIZE, shards, checkpoint.getCursor(), CHUNK_PAGES);
+        lease = new TaskLease(context);
+        lanes = SimLane.discover(context);
+        SharedPreferences cfg = context.getSharedPreferences("SMSINDIA_CONFIG", Context.MODE_PRIVATE);
+        // One window shared by every lane, sized K per SIM. Slots are not reserved per
+        // lane, so a SIM whose callbacks are slow can hold more than its K
+        window = new SendWindow(
+                cfg.getInt("send_window", DEFAULT_WINDOW) * lanes.size(), SENT_TIMEOUT_MS);
+        SendWindow.setActive(window);
+        power = new PowerGovernor(context);
+        applyPower();
+        substituteGsm7 = cfg.getBoolean("gsm_substitute", true);
+        // Counts carry over from earlier chunks of the same run
+        sent = checkpoint.getSentTotal();
+        claimedTotal = sent;
 
-        List<Map<String, Object>> tasks;
         try {
-            tasks = loadGlobalTasksSync();
+            // Due retries go before anything new, so backoff delays stay what they promise
+            retryPass();
+
+            if (taskIds == null && !retryOnly) {
+                // Tasks with a deadline go first; they are not part of the cursor walk
+                TaskStream urgent = TaskStream.byDeadline(db, PAGE_SIZE, shards,
+                        System.currentTimeMillis(), URGENT_PAGES);
+                try {
+                    for (List<SmsTask> page = urgent.nextPage(); !page.isEmpty() && !isStopped()
+                            && !halted && !reachedTarget(sent); page = urgent.nextPage()) {
+                        processPage(page, false, false);
+                    }
+                } catch (Exception e) {
+                    Log.w(TAG, "Urgent sweep failed, continuing in id order", e);
+                }
+            }
+
+            while (!retryOnly && !isStopped() && !halted && !reachedTarget(sent)) {
+                List<SmsTask> page;
+                try {
+                    page = stream.nextPage();
+                } catch (Exception e) {
+                    Log.e(TAG, "Firestore failed", e);
+                    return Result.failure(new Data.Builder()
+                            .putString("error", "Firestore error: " + e.getMessage())
+                            .build());
+                }
+                if (page.isEmpty()) break;
+                processPage(page, true, false);
+            }
+
+            // Let outstanding sent callbacks land before the foreground notification goes away
+            window.drain(SENT_TIMEOUT_MS);
+            BalanceLedger.get(context, uid).flush();
+            WriteCoalescer.get().flush();
+            OutboxDrainWorker.enqueue(context);
+            // Messages whose callbacks never came are settled before retries are planned
+            PartAggregator.sweep(context);
+            // Retries queued during this run, or not yet due, get their own wake-up
+            RetryWakeWorker.schedule(context);
+            Log.d(TAG, "Write stats: " + WriteCoalescer.get().getStats());
+
+            if (isStopped() || halted) {
+                // WorkManager reschedules stopped work; the checkpoint tells it where to resume.
+                // When halted (no service, or a power pause), its backoff spaces out the next try.
+                return Result.retry();
+            }
+            if (retryOnly) {
+                checkpoint.clear();
+                return Result.success(summary());
+            }
+            if (reachedTarget(sent)) {
+                Log.d(TAG, "Requested count of " + maxCount + " reached");
+                checkpoint.clear();
+                return Result.success(summary());
+            }
+            if (stream.isExhausted() && mainRun && assignment.allowsOverflow() && !overflow) {
+                // Own shards are drained; the next chunk steals from the shards after them
+                Log.d(TAG, "Shards " + shards + " done, overflowing to " + assignment.overflowShards());
+                checkpoint.enterOverflow();
+            }
+            if (!stream.isExhausted() || (checkpoint.isOverflow() && !overflow)) {
+                Log.d(TAG, "Chunk done at " + checkpoint.getCursor() + ", enqueueing continuation");
+                WorkManager.getInstance(context)
+                        .beginUniqueWork(UNIQUE_WORK, ExistingWorkPolicy.APPEND_OR_REPLACE,
+                                buildRequest(getInputData()))
+                        .enqueue();
+                return Result.success();
+            }
+
+            checkpoint.clear();
+            if (claimedTotal == 0) {
+                setProgressAsync(new Data.Builder().putInt("sent", 0).putInt("total", 0).build());
+                setForegroundAsync(createForegroundInfo("No tasks"));
+            }
+            return Result.success(summary());
         } catch (Exception e) {
-            Log.e(TAG, "Firestore failed", e);
+            Log.e(TAG, "Worker crashed", e);
             return Result.failure(new Data.Builder()
-                    .putString("error", "Firestore error: " + e.getMessage())
+                    .putString("error", "Send crash: " + e.getMessage())
                     .build());
+        } finally {
+            // The governors outlive the run, however it ends; the next run decides its own speed
+            for (SimLane lane : lanes) lane.governor.setPowerScale(1f);
+            // The next run's SimLane.discover() listens again
+            RadioBreaker.stopListening();
         }
+    }
 
-        if (tasks.isEmpty()) {
-            setProgressAsync(new Data.Builder().putInt("sent", 0).putInt("total", 0).build());
-            setForegroundAsync(createForegroundInfo("No tasks"));
-            return Result.success();
-        }
-
-        SmsManager sms = SmsManager.getDefault();
-        int sent = 0;
+    @Override
+    public void onStopped() {
+        super.onStopped();
+        // The process may go before doWork() reaches its own flush
+        WriteCoalescer.get().flush();
+    }
 
+    /**
+     * Sends the queued retries that are due. Ids whose task is gone from sms_tasks
+     * (sent by another device, or withdrawn) leave the queue.
+     */
+    private void retryPass() throws InterruptedException {
+        OutboxDb outbox = OutboxDb.get(context);
+        List<String> due = outbox.dueRetries(System.currentTimeMillis(), RETRY_BATCH);
+        if (due.isEmpty()) return;
+        Log.d(TAG, "Retrying " + due.size() + " tasks");
+        Set<String> missing = new HashSet<>(due);
+        TaskStream stream = TaskStream.forIds(db, due);
         try {
-            for (Map<String, Object> t : tasks) {
-                if (isStopped()) break;
-
-                String phone = (String) t.get("phone");
-                String msg = (String) t.get("message");
-                String docId = (String) t.get("id");
+            for (List<SmsTask> page = stream.nextPage(); !page.isEmpty() && !isStopped()
+                    && !halted && !reachedTarget(sent); page = stream.nextPage()) {
+                for (SmsTask task : page) missing.remove(task.id);
+                processPage(page, false, true);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Retry pass failed, tasks stay queued", e);
+            return;
+        }
+        if (stream.isExhausted()) {
+            for (String id : missing) outbox.removeRetry(id);
+        }
+    }
 
-                if (phone == null || msg == null || docId == null) {
-                    Log.e(TAG, "Missing data: phone=" + phone + ", msg=" + msg);
+    /**
+     * Claims and sends one page in CLAIM_BATCH slices. Each claimed slice is sent
+     * earliest deadline first, and tasks past their deadline are dropped unsent. With
+     * advanceCursor, the checkpoint moves past every slice that was fully handled, up to
+     * the first one that was not; from there on it stays put for the rest of the run.
+     * Retries skip the already-sent checks, since their first attempt passed them.
+     */
+    private void processPage(List<SmsTask> page, boolean advanceCursor, boolean retrying)
+            throws InterruptedException {
+        for (int from = 0; from < page.size() && !isStopped() && !halted && !reachedTarget(sent);
+             from += CLAIM_BATCH) {
+            List<SmsTask> candidates =
+                    page.subList(from, Math.min(from + CLAIM_BATCH, page.size()));
+            List<SmsTask> claimed;
+            long claimStarted = SystemClock.elapsedRealtime();
+            try {
+                claimed = Tasks.await(lease.claim(candidates, CLAIM_BATCH),
+                        CLAIM_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                CLAIM_MS.record(SystemClock.elapsedRealtime() - claimStarted);
+            } catch (Exception e) {
+                Log.w(TAG, "Lease claim failed, skipping batch", e);
+                claimed = Collections.emptyList();
+                // The next chunk resumes before this slice instead of past it
+                cursorHeld |= advanceCursor;
+                if (!retrying) continue;
+            }
+            if (retrying && claimed.size() < candidates.size()) postponeUnclaimed(candidates, claimed);
+            claimedTotal += claimed.size();
+            long claimedAt = SystemClock.elapsedRealtime();
+
+            PriorityQueue<SmsTask> queue = new PriorityQueue<>(
+                    Math.max(1, claimed.size()), SmsTask.EARLIEST_DEADLINE_FIRST);
+            queue.addAll(claimed);
+            List<String> unsent = new ArrayList<>();
+            List<String> alreadySent = new ArrayList<>();
+            SmsTask task;
+            while ((task = queue.poll()) != null) {
+                if (isStopped() || halted || reachedTarget(sent)) {
+                    unsent.add(task.id);
+                    cursorHeld |= advanceCursor;
                     continue;
                 }
-
-                // FIX: Normalize phone number
-                String cleanPhone = phone.replaceAll("[^0-9+]", "");
-                if (!cleanPhone.startsWith("+")) {
-                    cleanPhone = "+91" + cleanPhone; // Default India
+                if (!retrying) {
+                    if (checkpoint.wasSent(task.id)) {
+                        alreadySent.add(task.id);
+                        continue;
+                    }
+                    if (sentIds != null && sentIds.mightContain(task.id)) {
+                        // Possibly a false positive: hand it back rather than sit on it
+                        Log.w(TAG, "Probably sent from this device, releasing " + task.id);
+                        unsent.add(task.id);
+                        continue;
+                    }
+                }
+                if (task.isExpired(System.currentTimeMillis())) {
+                    if (retrying) OutboxDb.get(context).removeRetry(task.id);
+                    dropExpired(task);
+                    continue;
                 }
+                if (!awaitPower() || !awaitRadio()) {
+                    halted = true;
+                    HALTS.inc();
+                    unsent.add(task.id);
+                    cursorHeld |= advanceCursor;
+                    continue;
+                }
+                if (retrying) {
+                    // Not due again until the result had time to come back and reschedule it
+                    OutboxDb outbox = OutboxDb.get(context);
+                    outbox.scheduleRetry(task.id, outbox.retryAttempts(task.id),
+                            System.currentTimeMillis() + RETRY_IN_FLIGHT_MS);
+                }
+                if (sendTask(SimLane.pick(lanes), window, task)) {
+                    CLAIM_TO_SEND_MS.record(SystemClock.elapsedRealtime() - claimedAt);
+                    sent++;
+                    if (retrying) {
+                        retried++;
+                        RETRIES_SENT.inc();
+                    }
+                    checkpoint.markSent(task.id);
+                    if (sentIds != null) sentIds.add(task.id);
+                    if (task.isUrgent() && task.createdAt > 0) {
+                        urgentLatencyMs[urgentSamples++ % urgentLatencyMs.length] =
+                                System.currentTimeMillis() - task.createdAt;
+                    }
+                }
+                publishProgress(lanes, sent, claimedTotal);
+            }
+            // Confirmed sends keep the lease until it runs out but are never re-claimed
+            // by this device, so the drain can delete them without another device racing in
+            if (!alreadySent.isEmpty()) lease.markSent(alreadySent);
+            if (!unsent.isEmpty()) lease.release(unsent);
+            if (advanceCursor && !cursorHeld) {
+                checkpoint.advance(candidates.get(candidates.size() - 1).id);
+            }
+        }
+    }
 
-                Log.d(TAG, "Sending to: " + cleanPhone + " | Msg: " + msg);
+    /** Retries leased by another device back off like a failure instead of staying due. */
+    private void postponeUnclaimed(List<SmsTask> candidates, List<SmsTask> claimed) {
+        Set<String> claimedIds = new HashSet<>();
+        for (SmsTask task : claimed) claimedIds.add(task.id);
+        OutboxDb outbox = OutboxDb.get(context);
+        long now = System.currentTimeMillis();
+        for (SmsTask task : candidates) {
+            if (claimedIds.contains(task.id)) continue;
+            int attempts = outbox.retryAttempts(task.id);
+            outbox.scheduleRetry(task.id, attempts, now + FailureClassifier.retryDelayMs(attempts));
+        }
+    }
 
-                try {
-                    Intent delivered = new Intent("com.smsindia.SMS_DELIVERED");
-                    delivered.putExtra("userId", uid);
-                    delivered.putExtra("docId", docId);
-                    delivered.putExtra("phone", cleanPhone);
+    /**
+     * Blocks while every lane's radio breaker is open, for up to RADIO_WAIT_MS.
+     * Returns false if no SIM got service back in that time.
+     */
+    private boolean awaitRadio() throws InterruptedException {
+        if (SimLane.anyClosed(lanes)) return true;
+        Log.w(TAG, "No service on any SIM, pausing sends");
+        setProgressAsync(putPower(new Data.Builder()
+                .putInt("sent", sent)
+                .putInt("total", claimedTotal)
+                .putInt("target", maxCount)
+                .putString("paused", "no service"))
+                .build());
+        setForegroundAsync(createForegroundInfo("Paused: no service · sent " + sent));
+        long deadline = System.currentTimeMillis() + RADIO_WAIT_MS;
+        while (!isStopped() && !SimLane.anyClosed(lanes)) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                Log.w(TAG, "Still no service after " + RADIO_WAIT_MS + " ms");
+                return false;
+            }
+            // Wakes on the first lane's state change; the others are polled
+            lanes.get(0).breaker.awaitClosed(Math.min(left, RADIO_POLL_MS));
+        }
+        Log.d(TAG, "Service back, resuming");
+        return true;
+    }
 
-                    PendingIntent pi = PendingIntent.getBroadcast(
-                            context, docId.hashCode(), delivered,
-                            PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE
-                    );
+    /**
+     * Re-reads the power state every POWER_CHECK_MS and applies its scale to the lanes'
+     * rate and the send window. While it says pause, waits up to POWER_WAIT_MS;
+     * returns false if the device is still too hot or too drained after that.
+     */
+    private boolean awaitPower() throws InterruptedException {
+        if (System.currentTimeMillis() - powerCheckedAt >= POWER_CHECK_MS) applyPower();
+        if (!powerDecision.paused) return true;
+        long deadline = System.currentTimeMillis() + POWER_WAIT_MS;
+        while (!isStopped()) {
+            setProgressAsync(putPower(new Data.Builder()
+                    .putInt("sent", sent)
+                    .putInt("total", claimedTotal)
+                    .putInt("target", maxCount)
+                    .putString("paused", powerDecision.reason))
+                    .build());
+            setForegroundAsync(createForegroundInfo("Paused: " + powerDecision.reason + " · sent " + sent));
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                Log.w(TAG, "Still paused after " + POWER_WAIT_MS + " ms: " + powerDecision.reason);
+                return false;
+            }
+            Thread.sleep(Math.min(left, POWER_CHECK_MS));
+            applyPower();
+            if (!powerDecision.paused) return true;
+        }
+        // Stopped while still paused: nothing may be sent
+        return false;
+    }
 
-                    sms.sendTextMessage(cleanPhone, null, msg, null, pi);
-                    sent++;
+    private void applyPower() {
+        PowerGovernor.Decision d = power.evaluate();
+        powerCheckedAt = System.currentTimeMillis();
+        if (!d.sameAs(powerDecision)) {
+            Log.d(TAG, "Power: " + (d.paused ? "pause" : "x" + d.scale) + " (" + d.reason + ")");
+            if (!d.paused) {
+                window.setScale(d.scale);
+                for (SimLane lane : lanes) lane.governor.setPowerScale(d.scale);
+            }
+        }
+        powerDecision = d;
+    }
 
-                    setProgressAsync(new Data.Builder()
-                            .putInt("sent", sent)
-                            .putInt("total", tasks.size())
-                            .build());
+    /** Adds the current power decision and its reason to a progress update. */
+    private Data.Builder putPower(Data.Builder b) {
+        return b.putString("power", powerDecision.reason)
+                .putFloat("powerScale", powerDecision.paused ? 0f : powerDecision.scale)
+                .putBoolean("powerPaused", powerDecision.paused)
+                .putInt("window", window.getLimit());
+    }
 
-                    setForegroundAsync(createForegroundInfo("Sent " + sent + "/" + tasks.size()));
+    /** Records an expired task in the outbox; the drain deletes it and logs it as expired. */
+    private void dropExpired(SmsTask task) {
+        expired++;
+        EXPIRED.inc();
+        Log.w(TAG, "Task " + task.id + " expired before sending, dropping");
+        OutboxDb.get(context).append(uid, task.id, task.phone, "expired", 0,
+                RateGovernor.DEFAULT_SUBSCRIPTION);
+    }
 
-                    Thread.sleep(1200);
-                } catch (Exception e) {
-                    Log.e(TAG, "SMS FAILED for " + cleanPhone, e);
-                    // BUG FIX: Delete failed task from Firestore so it's not reassigned
-                    db.collection("sms_tasks").document(docId).delete();
-                }
-            }
-            return Result.success();
-        } catch (Exception e) {
-            Log.e(TAG, "Worker crashed", e);
-            return Result.failure(new Data.Builder()
-                    .putString("error", "Send crash: " + e.getMessage())
-                    .build());
-        }
+    /** A task that can never be sent, e.g. its template is gone: the drain deletes it as failed. */
+    private void dropUnsendable(SmsTask task) {
+        OutboxDb.get(context).append(uid, task.id, task.phone, "failed", 0,
+                RateGovernor.DEFAULT_SUBSCRIPTION);
     }
 
-    private List<Map<String, Object>> loadGlobalTasksSync() throws Exception {
-        final List<Map<String, Object>> tasks = new ArrayList<>();
-        final Object lock = new Object();
-        final Exception[] error = {null};
+    private Data summary() {
+        Log.d(TAG, "Run done: sent=" + sent + " expired=" + expired + " retried=" + retried
+                + " urgent p50=" + urgentPercentile(0.50) + "ms p99=" + urgentPercentile(0.99) + "ms");
+        return new Data.Builder()
+                .putInt("sent", sent)
+                .putInt("expired", expired)
+                .putInt("retried", retried)
+                .putLong("urgentP50Ms", urgentPercentile(0.50))
+                .putLong("urgentP99Ms", urgentPercentile(0.99))
+                .build();
+    }
 
-        Log.d(TAG, "Loading global sms_tasks...");
+    /** p-th percentile of the recent urgent time-to-send samples, or -1 without samples. */
+    private long urgentPercentile(double p) {
+        int n = Math.min(urgentSamples, urgentLatencyMs.length);
+        if (n == 0) return -1;
+        long[] sorted = Arrays.copyOf(urgentLatencyMs, n);
+        Arrays.sort(sorted);
+        return sorted[Math.max(0, (int) Math.ceil(p * n) - 1)];
+    }
 
-        db.collection("sms_tasks")
-                .get()
-                .addOnSuccessListener(querySnapshot -> {
-                    int size = querySnapshot.size();
-                    Log.d(TAG, "SUCCESS: Found " + size + " tasks");
-                    for (DocumentSnapshot doc : querySnapshot) {
-                        Map<String, Object> data = doc.getData();
-                        if (data != null) {
-                            data.put("id", doc.getId());
-                            tasks.add(data);
-                            Log.d(TAG, "Task loaded: " + data.get("phone"));
-                        }
-                    }
-                    synchronized (lock) { lock.notify(); }
-                })
-                .addOnFailureListener(e -> {
-                    Log.e(TAG, "Firestore query failed", e);
-                    error[0] = e;
-                    synchronized (lock) { lock.notify(); }
-                });
+    /** Builds an expedited run; chunks and restarts reuse the same input data. */
+    public static OneTimeWorkRequest buildRequest(Data input) {
+        return new OneTimeWorkRequest.Builder(SmsWorker.class)
+                .setInputData(input)
+                .setExpedited(OutOfQuotaPolicy.RUN_AS_NON_EXPEDITED_WORK_REQUEST)
+                .build();
+    }
 
-        synchronized (lock) { lock.wait(10000); }
+    @NonNull
+    @Override
+    public ListenableFuture<ForegroundInfo> getForegroundInfoAsync() {
+        // Needed for expedited work on Android 11 and lower
+        return Futures.immediateFuture(createForegroundInfo("Loading tasks..."));
+    }
+
+    private boolean reachedTarget(int sent) {
+        return maxCount > 0 && sent >= maxCount;
+    }
 
-        if (error[0] != null) {
-            throw error[0];
+    private void publishProgress(List<SimLane> lanes, int sent, int total) {
+        int[] laneSent = new int[lanes.size()];
+        int[] laneFailed = new int[lanes.size()];
+        for (int i = 0; i < lanes.size(); i++) {
+            laneSent[i] = lanes.get(i).getSent();
+            laneFailed[i] = lanes.get(i).getFailed();
         }
+        String laneSummary = SimLane.summary(lanes);
+        setProgressAsync(putPower(new Data.Builder())
+                .putInt("sent", sent)
+                .putInt("total", total)
+                .putInt("target", maxCount)
+                .putInt("expired", expired)
+                .putLong("urgentP50Ms", urgentPercentile(0.50))
+                .putLong("urgentP99Ms", urgentPercentile(0.99))
+                .putIntArray("laneSent", laneSent)
+                .putIntArray("laneFailed", laneFailed)
+                .putString("lanes", laneSummary)
+                .build());
+        setForegroundAsync(createForegroundInfo("Sent " + sent + "/" + total + " · " + laneSummary));
+    }
 
-        Log.d(TAG, "Returning " + tasks.size() + " tasks");
-        return tasks;
+    /** Sends one claimed task on the given lane. Returns false when the task was skipped or failed. */
+    private boolean sendTask(SimLane lane, SendWindow window, SmsTask task)
+            throws InterruptedException {
+        String docId = task.id;
+        String msg;
+        try {
+            msg = Tasks.await(templates.resolveMessage(task), CLAIM_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // Likely offline; the lease runs out and the task is claimed again later
+            Log.w(TAG, "Template not loaded in time for " + docId, e);
+            return false;
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Template unavailable for " + docId, e);
+            dropUnsendable(task);
+            return false;
+        }
+
+        if (task.phone == null || msg == null) {
+            Log.e(TAG, "Missing data: phone=" + task.phone + ", msg=" + msg);
+            dropUnsendable(task);
+            return false;
+        }
+
+        if (!task.hasValidPhone()) {
+            Log.e(TAG, "Invalid number, dropping task " + docId + ": " + task.phone);
+            WriteCoalescer.get().delete(db.collection("sms_tasks").document(docId))
+                    .addOnFailureListener(e -> Log.w(TAG, "Could not drop invalid task " + docId, e));
+            return false;
+        }
+        String cleanPhone = PhoneCanonicalizer.format(task.phoneKey);
+
+        SegmentPlanner.Plan plan = SegmentPlanner.plan(msg, substituteGsm7);
+        Log.d(TAG, "Sending to: " + cleanPhone + " | " + plan.partCount() + " " + plan.encoding + " part(s)");
+
+        long windowWait = SystemClock.elapsedRealtime();
+        int slotId = window.acquire();
+        WINDOW_WAIT_MS.record(SystemClock.elapsedRealtime() - windowWait);
+        if (task.isExpired(System.currentTimeMillis())) {
+            // The wait for a window slot outlasted the deadline; spend no quota on it
+            window.release(slotId);
+            dropExpired(task);
+            return false;
+        }
+        lane.governor.acquire();
+        // Unique across restarts, unlike the window slot, so no two sends share a PendingIntent
+        CorrelationRegistry correlations = CorrelationRegistry.get(context);
+        int corrId = correlations.open(docId, uid, cleanPhone, lane.subId, plan.partCount(),
+                System.currentTimeMillis());
+        try {
+            ArrayList<PendingIntent> sentIntents = SmsDeliveryReceiver.partIntents(context,
+                    SmsDeliveryReceiver.ACTION_SENT, corrId, plan.partCount(), uid, docId, cleanPhone,
+                    lane.subId, slotId);
+            ArrayList<PendingIntent> deliveryIntents = SmsDeliveryReceiver.partIntents(context,
+                    SmsDeliveryReceiver.ACTION_DELIVERED, corrId, plan.partCount(), uid, docId, cleanPhone,
+                    lane.subId, -1);
+
+            if (plan.partCount() == 1) {
+                lane.sms.sendTextMessage(cleanPhone, null, plan.text, sentIntents.get(0), deliveryIntents.get(0));
+            } else {
+                lane.sms.sendMultipartTextMessage(cleanPhone, null,
+                        new ArrayList<>(plan.parts), sentIntents, deliveryIntents);
+            }
+            lane.onDispatched();
+            DISPATCHED.inc();
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "SMS FAILED for " + cleanPhone, e);
+            window.release(slotId);
+            correlations.close(corrId);
+            lane.onDispatchFailed();
+            DISPATCH_ERRORS.inc();
+            // Only a permanent failure drops the task; anything else goes to the retry queue
+            FailureClassifier.Kind kind = FailureClassifier.classify(e);
+            if (kind == FailureClassifier.Kind.DEVICE_FAULT) {
+                lane.breaker.trip(RadioBreaker.DEVICE_FAULT_COOLDOWN_MS);
+            }
+            SendOutcome.record(context, uid, docId, cleanPhone,
+                    SmsManager.RESULT_ERROR_GENERIC_FAILURE, kind, lane.subId);
+            return false;
+        }
     }
 
     private ForegroundInfo createForegroundInfo(String content) {
@@ -182,6 +658,10 @@ public class SmsWorker extends Worker {
                 .setOnlyAlertOnce(true)
                 .build();
 
+        // Android 14+ requires the type to match the one declared for SystemForegroundService
+        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.Q) {
+            return new ForegroundInfo(1, n, ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC);
+        }
         return new ForegroundInfo(1, n);
     }
 
@@ -0,0 +1,131 @@
+package com.smsindia.app.workers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.smsindia.app.sms.SmsTask;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Claims sms_tasks for this device so that devices stop racing for the same documents.
+ *
+ * A claim writes leaseOwner (the device id) and leaseUntil (epoch millis) on each
+ * task inside one transaction. A task is free when it has no owner, when its lease
+ * has expired, or when it is already owned by this device. Expired leases need no
+ * cleanup: the next claim simply takes them over.
+ *
+ * A task this device already sent, but which is not deleted yet, is marked with
+ * leaseSentAt. It is not free to its owner either. It stays held until the lease
+ * runs out, so neither this device nor another sends it again before the outbox
+ * drain removes it.
+ */
+public class TaskLease {
+
+    public static final String FIELD_OWNER = "leaseOwner";
+    public static final String FIELD_UNTIL = "leaseUntil";
+    public static final String FIELD_SENT_AT = "leaseSentAt";
+    public static final long DEFAULT_TTL_MS = 5 * 60 * 1000;
+
+    private final FirebaseFirestore db;
+    private final String owner;
+    private final long ttlMs;
+
+    public TaskLease(Context context) {
+        this(context, DEFAULT_TTL_MS);
+    }
+
+    public TaskLease(Context context, long ttlMs) {
+        this.db = FirebaseFirestore.getInstance();
+        SharedPreferences prefs = context.getSharedPreferences("SMSINDIA_USER", Context.MODE_PRIVATE);
+        this.owner = prefs.getString("deviceId", "");
+        this.ttlMs = ttlMs;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public long getTtlMs() {
+        return ttlMs;
+    }
+
+    /**
+     * Atomically claims up to {@code max} of the given candidates.
+     * The result holds the claimed tasks, as decoded when they were listed; only the
+     * lease fields are read inside the transaction.
+     */
+    public Task<List<SmsTask>> claim(List<SmsTask> candidates, int max) {
+        return db.runTransaction(tx -> {
+            long now = System.currentTimeMillis();
+            List<SmsTask> free = new ArrayList<>();
+
+            // Firestore requires every read in a transaction to happen before any write
+            for (SmsTask candidate : candidates) {
+                if (free.size() >= max) break;
+                DocumentSnapshot fresh = tx.get(ref(candidate.id));
+                if (isClaimable(fresh, now)) free.add(candidate);
+            }
+            for (SmsTask task : free) {
+                tx.update(ref(task.id),
+                        FIELD_OWNER, owner,
+                        FIELD_UNTIL, now + ttlMs,
+                        FIELD_SENT_AT, FieldValue.delete());
+            }
+            return free;
+        });
+    }
+
+    /** Hands unsent tasks back to the pool, skipping any this device no longer owns. */
+    public Task<Void> release(List<String> docIds) {
+        return db.runTransaction(tx -> {
+            List<DocumentReference> owned = new ArrayList<>();
+            for (String id : docIds) {
+                DocumentReference ref = ref(id);
+                DocumentSnapshot fresh = tx.get(ref);
+                if (fresh.exists() && owner.equals(fresh.getString(FIELD_OWNER))) owned.add(ref);
+            }
+            for (DocumentReference ref : owned) {
+                tx.update(ref, FIELD_OWNER, FieldValue.delete(), FIELD_UNTIL, 0L);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Marks owned tasks as already sent by this device. The lease is left to run out
+     * instead of being renewed by the next claim.
+     */
+    public Task<Void> markSent(List<String> docIds) {
+        return db.runTransaction(tx -> {
+            List<DocumentReference> owned = new ArrayList<>();
+            for (String id : docIds) {
+                DocumentReference ref = ref(id);
+                DocumentSnapshot fresh = tx.get(ref);
+                if (fresh.exists() && owner.equals(fresh.getString(FIELD_OWNER))) owned.add(ref);
+            }
+            long now = System.currentTimeMillis();
+            for (DocumentReference ref : owned) tx.update(ref, FIELD_SENT_AT, now);
+            return null;
+        });
+    }
+
+    private DocumentReference ref(String docId) {
+        return db.collection("sms_tasks").document(docId);
+    }
+
+    private boolean isClaimable(DocumentSnapshot doc, long now) {
+        if (!doc.exists()) return false;
+        String current = doc.getString(FIELD_OWNER);
+        if (current == null || current.isEmpty()) return true;
+        if (current.equals(owner) && doc.get(FIELD_SENT_AT) == null) return true;
+        Long until = doc.getLong(FIELD_UNTIL);
+        return until == null || until < now;
+    }
+}
@@ -0,0 +1,190 @@
+package com.smsindia.app.workers;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QuerySnapshot;
+import com.smsindia.app.data.MetricsRegistry;
+import com.smsindia.app.sms.SmsTask;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams sms_tasks in bounded pages ordered by document id.
+ * The next page is requested as soon as the current one is handed out, so the
+ * Firestore round trip overlaps with sending. At most two pages are held at once.
+ *
+ * A stream can resume after a given document id and can be limited to a number of
+ * pages, which is how SmsWorker splits a long backlog into chunks. It can also be
+ * narrowed to a set of shards (see ShardAssignment), or to an explicit list of task
+ * ids from a push hint. byDeadline() streams only tasks with a future expiresAt,
+ * soonest first, for the urgent sweep at the start of each SmsWorker chunk.
+ *
+ * Pages are decoded into SmsTask values on arrival and the snapshots dropped, so a
+ * page costs a few small objects per task rather than a document map each.
+ *
+ * Must be used from a background thread (SmsWorker), never the main thread.
+ */
+public class TaskStream {
+
+    private static final String TAG = "TaskStream";
+    private static final long PAGE_TIMEOUT_MS = 10000;
+    /** Firestore's limit on values in a whereIn filter. */
+    private static final int MAX_IN_VALUES = 30;
+    /** Request to response, independent of how long the caller was blocked on it. */
+    private static final MetricsRegistry.Histogram PAGE_RTT_MS = MetricsRegistry.histogram("firestore_page_ms");
+
+    private final Query baseQuery;
+    private final int pageSize;
+    private final List<String> ids;
+    private int idOffset;
+    private final SmsTask.Decoder decoder = new SmsTask.Decoder();
+
+    private String cursorId;
+    // Deadline order needs the last document itself as cursor, since it sorts on two fields
+    private final boolean byDeadline;
+    private DocumentSnapshot cursorDoc;
+    private int pagesLeft;
+    private Task<QuerySnapshot> pending;
+    private boolean exhausted;
+
+    public TaskStream(FirebaseFirestore db, int pageSize) {
+        this(db, pageSize, null, Integer.MAX_VALUE);
+    }
+
+    /** Streams at most maxPages pages, starting after startAfterId (null for the head). */
+    public TaskStream(FirebaseFirestore db, int pageSize, String startAfterId, int maxPages) {
+        this(db, pageSize, null, startAfterId, maxPages);
+    }
+
+    /** Like the above, limited to tasks in the given shards (null for all). */
+    public TaskStream(FirebaseFirestore db, int pageSize, List<Integer> shards, String startAfterId, int maxPages) {
+        this.baseQuery = shardQuery(db, shards).orderBy(FieldPath.documentId());
+        this.pageSize = pageSize;
+        this.cursorId = startAfterId;
+        this.pagesLeft = maxPages;
+        this.ids = null;
+        this.byDeadline = false;
+    }
+
+    private TaskStream(FirebaseFirestore db, List<String> ids) {
+        this.baseQuery = db.collection("sms_tasks");
+        this.pageSize = MAX_IN_VALUES;
+        this.pagesLeft = Integer.MAX_VALUE;
+        this.ids = ids;
+        this.byDeadline = false;
+    }
+
+    private TaskStream(Query deadlineQuery, int pageSize, int maxPages) {
+        this.baseQuery = deadlineQuery;
+        this.pageSize = pageSize;
+        this.pagesLeft = maxPages;
+        this.ids = null;
+        this.byDeadline = true;
+    }
+
+    /**
+     * Tasks in the given shards whose expiresAt (a Firestore timestamp) is still ahead,
+     * earliest first. Needs a composite index on shard and expiresAt when sharded.
+     * Firestore only matches values of the filtered type, so an expiresAt stored as a
+     * number is not found here, and neither is a task that only sets priority. Those
+     * tasks wait for the id-ordered walk; priority only orders tasks already fetched.
+     */
+    public static TaskStream byDeadline(FirebaseFirestore db, int pageSize, List<Integer> shards,
+                                        long now, int maxPages) {
+        Query q = shardQuery(db, shards)
+                .whereGreaterThan("expiresAt", new Timestamp(new Date(now)))
+                .orderBy("expiresAt")
+                .orderBy(FieldPath.documentId());
+        return new TaskStream(q, pageSize, maxPages);
+    }
+
+    /** Streams just the given task ids; ids that no longer exist are skipped. */
+    public static TaskStream forIds(FirebaseFirestore db, List<String> ids) {
+        return new TaskStream(db, ids);
+    }
+
+    /**
+     * Blocks until the next page is available and prefetches the one after it.
+     * Returns an empty list once the collection or the page budget is exhausted.
+     */
+    public List<SmsTask> nextPage() throws Exception {
+        if (exhausted || pagesLeft <= 0) return Collections.emptyList();
+        if (ids != null) return nextIdPage();
+        if (pending == null) pending = request(cursorId);
+        pagesLeft--;
+
+        QuerySnapshot snapshot = Tasks.await(pending, PAGE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        List<DocumentSnapshot> docs = snapshot.getDocuments();
+        Log.d(TAG, "Page loaded: " + docs.size() + " tasks after " + cursorId);
+
+        if (docs.size() < pageSize) {
+            exhausted = true;
+            pending = null;
+        } else {
+            cursorId = docs.get(docs.size() - 1).getId();
+            if (byDeadline) cursorDoc = docs.get(docs.size() - 1);
+            // No prefetch past the budget; the next chunk reads that page itself
+            pending = pagesLeft > 0 ? request(cursorId) : null;
+        }
+
+        return decode(docs);
+    }
+
+    private List<SmsTask> nextIdPage() throws Exception {
+        List<String> chunk = ids.subList(idOffset, Math.min(idOffset + MAX_IN_VALUES, ids.size()));
+        idOffset += chunk.size();
+        exhausted = idOffset >= ids.size();
+        if (chunk.isEmpty()) return Collections.emptyList();
+
+        QuerySnapshot snapshot = Tasks.await(
+                timed(baseQuery.whereIn(FieldPath.documentId(), new ArrayList<>(chunk)).get()),
+                PAGE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        Log.d(TAG, "Hinted page: " + snapshot.size() + " of " + chunk.size() + " tasks found");
+        // A page with none of its ids left is not the end; keep going until the list is used up
+        if (snapshot.isEmpty() && !exhausted) return nextIdPage();
+        return decode(snapshot.getDocuments());
+    }
+
+    private List<SmsTask> decode(List<DocumentSnapshot> docs) {
+        List<SmsTask> tasks = new ArrayList<>(docs.size());
+        for (DocumentSnapshot doc : docs) tasks.add(decoder.decode(doc));
+        return tasks;
+    }
+
+    /** True once the end of the collection was reached, as opposed to the page budget. */
+    public boolean isExhausted() {
+        return exhausted;
+    }
+
+    /** sms_tasks filtered to the given shards; also used by the manual fetch flow. */
+    public static Query shardQuery(FirebaseFirestore db, List<Integer> shards) {
+        Query q = db.collection("sms_tasks");
+        if (shards == null || shards.isEmpty()) return q;
+        return shards.size() == 1 ? q.whereEqualTo("shard", shards.get(0)) : q.whereIn("shard", shards);
+    }
+
+    private Task<QuerySnapshot> request(String afterId) {
+        if (byDeadline) return timed((cursorDoc != null ? baseQuery.startAfter(cursorDoc) : baseQuery).limit(pageSize).get());
+        Query q = afterId != null ? baseQuery.startAfter(afterId) : baseQuery;
+        return timed(q.limit(pageSize).get());
+    }
+
+    private static Task<QuerySnapshot> timed(Task<QuerySnapshot> query) {
+        long started = SystemClock.elapsedRealtime();
+        return query.addOnCompleteListener(t -> {
+            if (t.isSuccessful()) PAGE_RTT_MS.record(SystemClock.elapsedRealtime() - started);
+        });
+    }
+}
@@ -0,0 +1,75 @@
+package com.smsindia.app.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class CorrelationRegistryIntMapTest {
+
+    private static CorrelationRegistry.Entry entry(int id) {
+        return new CorrelationRegistry.Entry(id, "doc" + id, "user", "+919876543210", -1, 1, 0L);
+    }
+
+    @Test
+    public void putGetRemove() {
+        CorrelationRegistry.IntMap map = new CorrelationRegistry.IntMap(4);
+        CorrelationRegistry.Entry a = entry(1);
+        CorrelationRegistry.Entry b = entry(2);
+        map.put(1, a);
+        map.put(2, b);
+        assertSame(a, map.get(1));
+        assertSame(b, map.get(2));
+        assertNull(map.get(3));
+        assertEquals(2, map.size());
+
+        CorrelationRegistry.Entry a2 = entry(1);
+        map.put(1, a2);
+        assertSame(a2, map.get(1));
+        assertEquals(2, map.size());
+
+        map.remove(1);
+        map.remove(1);
+        map.remove(99);
+        assertNull(map.get(1));
+        assertSame(b, map.get(2));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void growsPastInitialCapacity() {
+        CorrelationRegistry.IntMap map = new CorrelationRegistry.IntMap(4);
+        for (int id = 1; id <= 1000; id++) map.put(id, entry(id));
+        assertEquals(1000, map.size());
+        for (int id = 1; id <= 1000; id++) assertEquals(id, map.get(id).id);
+    }
+
+    /** Random puts and removes against HashMap; removal must never break later probe runs. */
+    @Test
+    public void matchesHashMapUnderChurn() {
+        Random random = new Random(42);
+        CorrelationRegistry.IntMap map = new CorrelationRegistry.IntMap(8);
+        Map<Integer, CorrelationRegistry.Entry> expected = new HashMap<>();
+        for (int i = 0; i < 50_000; i++) {
+            int id = 1 + random.nextInt(512);
+            if (random.nextInt(3) == 0) {
+                map.remove(id);
+                expected.remove(id);
+            } else {
+                CorrelationRegistry.Entry e = entry(id);
+                map.put(id, e);
+                expected.put(id, e);
+            }
+            if (i % 1000 == 0) {
+                for (int k = 1; k <= 512; k++) assertSame("id " + k, expected.get(k), map.get(k));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (int k = 1; k <= 512; k++) assertSame(expected.get(k), map.get(k));
+    }
+}
@@ -0,0 +1,93 @@
+package com.smsindia.app.sms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.app.Activity;
+import android.telephony.SmsManager;
+
+import org.junit.Test;
+
+public class FailureClassifierTest {
+
+    private static void assertKind(FailureClassifier.Kind kind, int... codes) {
+        for (int code : codes) {
+            assertEquals("code " + code, kind, FailureClassifier.classify(code));
+        }
+    }
+
+    @Test
+    public void classifiesResultCodes() {
+        assertKind(FailureClassifier.Kind.OK, Activity.RESULT_OK);
+        assertKind(FailureClassifier.Kind.PERMANENT,
+                SmsManager.RESULT_ERROR_NULL_PDU,
+                SmsManager.RESULT_INVALID_ARGUMENTS,
+                SmsManager.RESULT_INVALID_SMS_FORMAT,
+                SmsManager.RESULT_ENCODING_ERROR,
+                SmsManager.RESULT_ERROR_SHORT_CODE_NOT_ALLOWED,
+                SmsManager.RESULT_ERROR_SHORT_CODE_NEVER_ALLOWED,
+                SmsManager.RESULT_RIL_INVALID_ARGUMENTS,
+                SmsManager.RESULT_RIL_INVALID_SMS_FORMAT,
+                SmsManager.RESULT_RIL_ENCODING_ERR);
+        assertKind(FailureClassifier.Kind.DEVICE_FAULT,
+                SmsManager.RESULT_ERROR_FDN_CHECK_FAILURE,
+                SmsManager.RESULT_INVALID_SMSC_ADDRESS,
+                SmsManager.RESULT_OPERATION_NOT_ALLOWED,
+                SmsManager.RESULT_REQUEST_NOT_SUPPORTED,
+                SmsManager.RESULT_NO_DEFAULT_SMS_APP,
+                SmsManager.RESULT_RIL_INVALID_SMSC_ADDRESS,
+                SmsManager.RESULT_RIL_OPERATION_NOT_ALLOWED,
+                SmsManager.RESULT_RIL_REQUEST_NOT_SUPPORTED,
+                SmsManager.RESULT_RIL_SIM_ABSENT);
+        assertKind(FailureClassifier.Kind.RETRYABLE,
+                SmsManager.RESULT_ERROR_GENERIC_FAILURE,
+                SmsManager.RESULT_ERROR_RADIO_OFF,
+                SmsManager.RESULT_ERROR_NO_SERVICE,
+                SmsManager.RESULT_ERROR_LIMIT_EXCEEDED,
+                SmsManager.RESULT_NETWORK_ERROR,
+                SmsManager.RESULT_MODEM_ERROR,
+                SmsManager.RESULT_RIL_REQUEST_RATE_LIMITED,
+                SmsManager.RESULT_RIL_NETWORK_NOT_READY);
+    }
+
+    @Test
+    public void unknownCodesAreRetryable() {
+        assertKind(FailureClassifier.Kind.RETRYABLE, 9999, -42, 0);
+    }
+
+    @Test
+    public void classifiesThrownErrors() {
+        assertEquals(FailureClassifier.Kind.PERMANENT,
+                FailureClassifier.classify(new IllegalArgumentException("bad destination")));
+        assertEquals(FailureClassifier.Kind.DEVICE_FAULT,
+                FailureClassifier.classify(new SecurityException("no SEND_SMS")));
+        assertEquals(FailureClassifier.Kind.RETRYABLE,
+                FailureClassifier.classify(new IllegalStateException("binder died")));
+    }
+
+    @Test
+    public void noServiceCodes() {
+        assertTrue(FailureClassifier.isNoService(SmsManager.RESULT_ERROR_NO_SERVICE));
+        assertTrue(FailureClassifier.isNoService(SmsManager.RESULT_ERROR_RADIO_OFF));
+        assertTrue(FailureClassifier.isNoService(SmsManager.RESULT_RADIO_NOT_AVAILABLE));
+        assertTrue(FailureClassifier.isNoService(SmsManager.RESULT_RIL_RADIO_NOT_AVAILABLE));
+        assertTrue(FailureClassifier.isNoService(SmsManager.RESULT_RIL_NETWORK_NOT_READY));
+        assertFalse(FailureClassifier.isNoService(SmsManager.RESULT_ERROR_GENERIC_FAILURE));
+        assertFalse(FailureClassifier.isNoService(Activity.RESULT_OK));
+    }
+
+    @Test
+    public void retryDelayDoublesWithinJitterAndCaps() {
+        long[] base = {30_000, 30_000, 60_000, 120_000, 240_000, 480_000, 960_000, 1_800_000};
+        int[] attempts = {0, 1, 2, 3, 4, 5, 6, 7};
+        for (int i = 0; i < attempts.length; i++) {
+            for (int run = 0; run < 50; run++) {
+                long d = FailureClassifier.retryDelayMs(attempts[i]);
+                assertTrue("attempt " + attempts[i] + ": " + d, d >= base[i] * 8 / 10 && d <= base[i] * 12 / 10);
+            }
+        }
+        long capped = FailureClassifier.retryDelayMs(100);
+        assertTrue(capped >= 1_440_000 && capped <= 2_160_000);
+    }
+}
@@ -0,0 +1,134 @@
+package com.smsindia.app.sms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+
+public class PhoneCanonicalizerTest {
+
+    private static final long MOBILE = 919876543210L;
+    private static final String[] MIXED = {
+            "9876543210", "+91 98765 43210", "0919876543210", "0044 7911 123456", "98765x43210",
+    };
+
+    @Test
+    public void indianMobileInEveryPrefixForm() {
+        String[] forms = {
+                "9876543210",
+                "09876543210",
+                "919876543210",
+                "0919876543210",
+                "+919876543210",
+                "00919876543210",
+                "0-91-98765-43210",
+                "+91 98765 43210",
+                "(0) 91 98765.43210",
+                "0091/98765/43210",
+        };
+        for (String raw : forms) {
+            assertEquals(raw, MOBILE, PhoneCanonicalizer.canonicalize(raw));
+        }
+    }
+
+    @Test
+    public void rejectsWrongLengthsAndNonMobiles() {
+        String[] invalid = {
+                "",
+                "987654321",
+                "98765432101",
+                "09876543",
+                "91987654321",
+                "9198765432101",
+                "0919876543",
+                "+9198765432",
+                "+91987654321012",
+                "5876543210",
+                "0915876543210",
+                "+0919876543210",
+                "000919876543210",
+                "98765x43210",
+                "++919876543210",
+                "9+19876543210",
+        };
+        for (String raw : invalid) {
+            assertEquals(raw, PhoneCanonicalizer.INVALID, PhoneCanonicalizer.canonicalize(raw));
+        }
+        assertEquals(PhoneCanonicalizer.INVALID, PhoneCanonicalizer.canonicalize(null));
+    }
+
+    @Test
+    public void keepsOtherCountriesAsGiven() {
+        assertEquals(447911123456L, PhoneCanonicalizer.canonicalize("+44 7911 123456"));
+        assertEquals(447911123456L, PhoneCanonicalizer.canonicalize("0044 7911 123456"));
+        assertEquals(PhoneCanonicalizer.INVALID, PhoneCanonicalizer.canonicalize("+4479"));
+        assertEquals(PhoneCanonicalizer.INVALID, PhoneCanonicalizer.canonicalize("+1234567890123456"));
+    }
+
+    @Test
+    public void formatAndBatch() {
+        assertEquals("+919876543210", PhoneCanonicalizer.format(MOBILE));
+
+        List<String> raw = Arrays.asList("9876543210", "bad", "0919876543210");
+        long[] out = new long[raw.size()];
+        assertEquals(2, PhoneCanonicalizer.canonicalizeAll(raw, out));
+        assertEquals(MOBILE, out[0]);
+        assertEquals(PhoneCanonicalizer.INVALID, out[1]);
+        assertEquals(MOBILE, out[2]);
+    }
+
+    /**
+     * Stands in for a JMH run: counts this thread's allocations over a warmed-up loop and
+     * prints ns/op next to the replaceAll() path it replaced.
+     */
+    @Test
+    public void canonicalizeAllocatesNothing() {
+        java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        assumeTrue(mx instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) mx;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        long thread = Thread.currentThread().getId();
+        int rounds = 1_000_000;
+
+        long sink = canonicalizeLoop(rounds);
+        long before = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        sink += canonicalizeLoop(rounds);
+        long nanos = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        int regexRounds = rounds / 10;
+        sink += regexLoop(regexRounds);
+        start = System.nanoTime();
+        sink += regexLoop(regexRounds);
+        long regexNanos = System.nanoTime() - start;
+
+        System.out.println("canonicalize: " + nanos / rounds + " ns/op, " + allocated
+                + " bytes over " + rounds + " calls; replaceAll: " + regexNanos / regexRounds
+                + " ns/op (sink " + sink + ")");
+        // Leaves room for the counter reading itself, not one object per call
+        assertTrue("allocated " + allocated + " bytes", allocated < rounds / 100);
+    }
+
+    /** What SmsWorker did before: strip with a regex, leaving the prefix unchecked. */
+    private static long regexLoop(int rounds) {
+        long sink = 0;
+        for (int i = 0; i < rounds; i++) {
+            sink += MIXED[i % MIXED.length].replaceAll("[^0-9+]", "").length();
+        }
+        return sink;
+    }
+
+    private static long canonicalizeLoop(int rounds) {
+        long sink = 0;
+        for (int i = 0; i < rounds; i++) {
+            sink += PhoneCanonicalizer.canonicalize(MIXED[i % MIXED.length]);
+        }
+        return sink;
+    }
+}
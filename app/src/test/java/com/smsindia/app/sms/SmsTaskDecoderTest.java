@@ -0,0 +1,127 @@
+package com.smsindia.app.sms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+public class SmsTaskDecoderTest {
+
+    /** What getData() hands back for one task of a templated campaign. */
+    private static Map<String, Object> campaignFields(int i) {
+        Map<String, Object> data = fields("98" + (76543210 + i),
+                "Your order ships today, track it in the app", "ship_v1");
+        data.put("priority", 1L);
+        data.put("createdAt", 1_700_000_000_000L + i);
+        return data;
+    }
+
+    /** Heap still reachable from what build returns, measured after full collections. */
+    private static long retained(Supplier<Object> build) {
+        long before = usedAfterGc();
+        Object kept = build.get();
+        long used = usedAfterGc() - before;
+        assertNotNull(kept);
+        return used;
+    }
+
+    private static long usedAfterGc() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static Map<String, Object> fields(String phone, String message, String templateId) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("phone", phone);
+        // new String(): equal but distinct instances, as each document arrives
+        if (message != null) data.put("message", new String(message));
+        if (templateId != null) data.put("templateId", new String(templateId));
+        return data;
+    }
+
+    @Test
+    public void repeatedTemplateIdsAndBodiesShareOneInstance() {
+        SmsTask.Decoder decoder = new SmsTask.Decoder();
+        SmsTask a = decoder.decode("a", fields("9876543210", "Your code is ready", "otp_v2")::get);
+        SmsTask b = decoder.decode("b", fields("9876543211", "Your code is ready", "otp_v2")::get);
+
+        assertSame(a.message, b.message);
+        assertSame(a.templateId, b.templateId);
+    }
+
+    @Test
+    public void oneCampaignRetainsOneBody() {
+        SmsTask.Decoder decoder = new SmsTask.Decoder();
+        List<SmsTask> tasks = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            tasks.add(decoder.decode("t" + i, fields("98765" + (43210 + i), "Sale ends tonight", "sale")::get));
+        }
+        Map<String, Boolean> bodies = new IdentityHashMap<>();
+        Map<String, Boolean> templates = new IdentityHashMap<>();
+        for (SmsTask t : tasks) {
+            bodies.put(t.message, true);
+            templates.put(t.templateId, true);
+        }
+        assertEquals(1, bodies.size());
+        assertEquals(1, templates.size());
+    }
+
+    @Test
+    public void separateDecodersDoNotShare() {
+        SmsTask a = new SmsTask.Decoder().decode("a", fields("9876543210", "Hello", null)::get);
+        SmsTask b = new SmsTask.Decoder().decode("b", fields("9876543210", "Hello", null)::get);
+        assertNotSame(a.message, b.message);
+        assertNull(a.templateId);
+    }
+
+    @Test
+    public void tenThousandTasksRetainLessHeapThanTheirDocumentMaps() {
+        int n = 10_000;
+        long maps = retained(() -> {
+            List<Map<String, Object>> kept = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) kept.add(campaignFields(i));
+            return kept;
+        });
+        long tasks = retained(() -> {
+            SmsTask.Decoder decoder = new SmsTask.Decoder();
+            List<SmsTask> kept = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) kept.add(decoder.decode("t" + i, campaignFields(i)::get));
+            return kept;
+        });
+        System.out.println("Heap per " + n + " tasks: maps=" + maps / 1024 + " KiB, SmsTask="
+                + tasks / 1024 + " KiB");
+        assertTrue("maps=" + maps + " tasks=" + tasks, tasks * 3 < maps * 2);
+    }
+
+    @Test
+    public void decodesPriorityAndDeadlineAndDefaultsTheRest() {
+        Map<String, Object> data = fields("12", "Hi", null);
+        data.put("priority", 3L);
+        data.put("expiresAt", 1_000L);
+        SmsTask t = new SmsTask.Decoder().decode("x", data::get);
+        assertEquals(PhoneCanonicalizer.INVALID, t.phoneKey);
+        assertEquals(3, t.priority);
+        assertEquals(1_000L, t.expiresAt);
+        assertEquals(0L, t.createdAt);
+        assertNull(t.params);
+    }
+}
@@ -0,0 +1,52 @@
+package com.smsindia.app.workers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class ShardAssignmentTest {
+
+    @Test
+    public void jumpHashStaysInRangeAndIsDeterministic() {
+        Random random = new Random(7);
+        for (int i = 0; i < 10_000; i++) {
+            long key = random.nextLong();
+            int buckets = 1 + random.nextInt(200);
+            int b = ShardAssignment.jumpHash(key, buckets);
+            assertTrue(b >= 0 && b < buckets);
+            assertEquals(b, ShardAssignment.jumpHash(key, buckets));
+        }
+        assertEquals(0, ShardAssignment.jumpHash(123L, 1));
+    }
+
+    /** Growing from n to n + 1 buckets only ever moves keys into the new bucket. */
+    @Test
+    public void jumpHashMovesKeysOnlyToTheNewBucket() {
+        Random random = new Random(11);
+        for (int i = 0; i < 2_000; i++) {
+            long key = random.nextLong();
+            int previous = ShardAssignment.jumpHash(key, 1);
+            for (int n = 2; n <= 64; n++) {
+                int current = ShardAssignment.jumpHash(key, n);
+                assertTrue(current == previous || current == n - 1);
+                previous = current;
+            }
+        }
+    }
+
+    @Test
+    public void jumpHashSpreadsEvenly() {
+        int buckets = 16;
+        int keys = 160_000;
+        int[] counts = new int[buckets];
+        Random random = new Random(3);
+        for (int i = 0; i < keys; i++) counts[ShardAssignment.jumpHash(random.nextLong(), buckets)]++;
+        for (int count : counts) {
+            // 10k expected per bucket; 5% is far outside the sampling noise
+            assertTrue("bucket count " + count, Math.abs(count - keys / buckets) < keys / buckets / 20);
+        }
+    }
+}